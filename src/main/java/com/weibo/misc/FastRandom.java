@@ -0,0 +1,92 @@
+package com.weibo.misc;
+
+import java.util.Random;
+
+/**
+ * xoroshiro128+ 随机数生成器，非线程安全，每个采样线程各持有一个
+ * 1. java.util.Random 每次调用都要对种子做一次CAS，采样内循环中开销明显，这里直接用两个long保存状态
+ * 2. 继承Random，采样器等只依赖Random的代码不需要修改
+ * 3. 种子经过 splitmix64 展开为128位状态，相近的种子（如相邻的任务号）得到的序列互不相关
+ * Created by yuanye8 on 16/10/18.
+ */
+public class FastRandom extends Random {
+    private static final long serialVersionUID = 1L;
+    //不能有初始值：父类构造函数会先调用setSeed，之后字段初始化会覆盖状态
+    private long s0;
+    private long s1;
+
+    public FastRandom() {
+        this(System.nanoTime());
+    }
+
+    public FastRandom(long seed) {
+        super(seed);
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        this.s0 = mix(seed);
+        this.s1 = mix(seed + 0x9E3779B97F4A7C15L);
+        if (this.s0 == 0 && this.s1 == 0) {
+            this.s1 = 1;
+        }
+    }
+
+    @Override
+    public long nextLong() {
+        long a = this.s0;
+        long b = this.s1;
+        long result = a + b;
+        b ^= a;
+        this.s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+        this.s1 = Long.rotateLeft(b, 37);
+        return result;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /**
+     * 32位随机数乘以bound取高位，偏差不超过 bound / 2^32，对主题采样可以忽略
+     */
+    @Override
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    @Override
+    public double nextDouble() {
+        //低位线性相关性较弱，取高53位
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+    /**
+     * splitmix64，用于展开种子及由任务号派生种子
+     */
+    public static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,40 @@
+package com.weibo.misc;
+
+/**
+ * 工具类：Gamma函数相关的数值计算
+ * Created by yuanye8 on 16/10/18.
+ */
+public class Gamma {
+    private static final double HALF_LOG_2PI = 0.5 * Math.log(2.0 * Math.PI);
+
+    /**
+     * ln Gamma(x)，x > 0
+     * 先用 Gamma(x + 1) = x * Gamma(x) 把x移到10以上，再用Stirling级数
+     */
+    public static double logGamma(double x) {
+        double shift = 0.0;
+        while (x < 10.0) {
+            shift -= Math.log(x);
+            x += 1.0;
+        }
+        double inv = 1.0 / x;
+        double inv2 = inv * inv;
+        double series = inv * (1.0 / 12 - inv2 * (1.0 / 360 - inv2 * (1.0 / 1260 - inv2 / 1680)));
+        return shift + (x - 0.5) * Math.log(x) - x + HALF_LOG_2PI + series;
+    }
+
+    /**
+     * digamma函数 psi(x) = d ln Gamma(x) / dx，x > 0
+     */
+    public static double digamma(double x) {
+        double shift = 0.0;
+        while (x < 10.0) {
+            shift -= 1.0 / x;
+            x += 1.0;
+        }
+        double inv = 1.0 / x;
+        double inv2 = inv * inv;
+        double series = inv2 * (1.0 / 12 - inv2 * (1.0 / 120 - inv2 * (1.0 / 252 - inv2 * (1.0 / 240 - inv2 / 132))));
+        return shift + Math.log(x) - 0.5 * inv - series;
+    }
+}
@@ -0,0 +1,28 @@
+package com.weibo.misc;
+
+/**
+ * 工具类：缓存 ln Gamma(n + a) 在整数n上的取值，计数较小时查表，超出表长时直接计算
+ * Created by yuanye8 on 16/10/18.
+ */
+public class LogGammaTable {
+    private double a;
+    private double[] table;
+
+    public LogGammaTable(double a, int size) {
+        this.a = a;
+        this.table = new double[size];
+        for (int n = 0; n < size; n++) {
+            this.table[n] = Gamma.logGamma(n + a);
+        }
+    }
+
+    /**
+     * @return ln Gamma(n + a)
+     */
+    public double get(long n) {
+        if (n < this.table.length) {
+            return this.table[(int) n];
+        }
+        return Gamma.logGamma(n + this.a);
+    }
+}
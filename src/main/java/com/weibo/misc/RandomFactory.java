@@ -0,0 +1,60 @@
+package com.weibo.misc;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import java.util.Random;
+
+/**
+ * 创建随机数生成器，并由任务种子派生互不相关的子序列
+ * 1. type为fast时使用FastRandom，为java时使用java.util.Random
+ * 2. 同一个种子和相同的派生路径（如 迭代 -> reducer -> 线程）总是得到相同的序列，便于复现和对比采样结果
+ * 3. 任务内由 random.type 和 random.seed 配置，random.seed 未设置时每次运行使用不同的种子
+ * Created by yuanye8 on 16/10/18.
+ */
+public class RandomFactory {
+    public static String DEFAULT_TYPE = "fast";
+
+    public static Random create(String type, long seed) {
+        if (type == null || type.equals("fast")) {
+            return new FastRandom(seed);
+        } else if (type.equals("java")) {
+            return new Random(seed);
+        }
+        throw new RuntimeException("Unknown random type: " + type);
+    }
+
+    /**
+     * 当前任务的随机数，种子由 random.seed 和任务的分区号派生
+     */
+    public static Random forTask(JobConf conf) {
+        return create(conf.get("random.type", DEFAULT_TYPE), taskSeed(conf));
+    }
+
+    public static long taskSeed(JobConf conf) {
+        if (conf.get("random.seed") == null) {
+            return randomSeed();
+        }
+        return deriveSeed(conf.getLong("random.seed", 0L), taskPartition(conf));
+    }
+
+    /**
+     * @return 当前map或reduce任务的分区号，不在任务中时返回-1
+     */
+    public static int taskPartition(JobConf conf) {
+        return conf.getInt("mapreduce.task.partition", conf.getInt("mapred.task.partition", -1));
+    }
+
+    /**
+     * 由父序列的种子和子序列编号派生子序列的种子
+     */
+    public static long deriveSeed(long seed, long stream) {
+        return FastRandom.mix(FastRandom.mix(seed) + stream);
+    }
+
+    /**
+     * 未指定种子时使用的随机种子
+     */
+    public static long randomSeed() {
+        return FastRandom.mix(System.nanoTime() ^ System.currentTimeMillis());
+    }
+}
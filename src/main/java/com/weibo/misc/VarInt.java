@@ -0,0 +1,46 @@
+package com.weibo.misc;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * 工具类：变长整数编码，每个字节低7位存数据，最高位为1表示后面还有字节
+ * 1. 按无符号数编码，0~127只占1个字节，int最多占5个字节
+ * 2. 可能为负数的值先做zigzag变换（0, -1, 1, -2 ... 映射为 0, 1, 2, 3 ...），绝对值小的负数也只占1个字节
+ * Created by yuanye8 on 16/10/18.
+ */
+public class VarInt {
+    public static final int MAX_BYTES = 5;
+
+    /**
+     * 把value编码写入buffer的pos处
+     * @return 写完后的位置
+     */
+    public static int write(byte[] buffer, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    public static int read(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,241 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import java.util.Random;
+
+/**
+ * LightLDA 风格的 Metropolis-Hastings 采样，每个词的代价为 O(1)
+ * 目标分布 p(k) 正比于 (nzd[k] + alpha) * (nwz[w][k] + beta) / (nz[k] + V * beta)
+ * 交替使用两种建议分布：
+ * 1. 词建议 q_w(k) 正比于 nwz[w][k] + beta，nwz[w][k]部分用每个词的 Vose alias 表抽取，beta部分均匀抽取
+ * 2. 文档建议 q_d(k) 正比于 nzd[k] + alpha，nzd[k]部分通过随机选取文档中的一个词得到，alpha部分均匀抽取
+ * alias 表是建表时 nwz 的快照，使用 alias.rebuild.uses 次后重建；接受率中使用的也是快照中的计数，
+ * 因此表过期不影响采样的正确性，只影响接受率
+ * Created by yuanye8 on 16/10/18.
+ */
+public class AliasTopicSampler extends TopicSampler {
+    private AliasTable[] tables = null;
+    //每个词的alias表被使用的次数
+    private int[] uses = null;
+    private int rebuildUses = 0;
+    private int mhSteps = 2;
+
+    //建表用的临时空间
+    private double[] scaled = null;
+    private int[] small = null;
+    private int[] large = null;
+    private int[] row = null;
+
+    @Override
+    public void configure(JobConf conf) {
+        this.rebuildUses = conf.getInt("alias.rebuild.uses", 0);
+        this.mhSteps = conf.getInt("alias.mh.steps", 2);
+    }
+
+    @Override
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        super.init(numTopics, alpha, beta, nwz, nz, randomProvider);
+        if (this.rebuildUses <= 0) {
+            //默认每个表被使用K次后重建，建表代价O(K)被均摊为O(1)
+            this.rebuildUses = numTopics;
+        }
+        this.scaled = new double[numTopics];
+        this.small = new int[numTopics];
+        this.large = new int[numTopics];
+        this.row = new int[numTopics];
+        //多线程时alias表由fork传入，在线程间共享
+        if (this.tables == null) {
+            this.tables = new AliasTable[this.numWords];
+            this.uses = new int[this.numWords];
+            for (int w = 0; w < this.numWords; w++) {
+                this.tables[w] = build(w);
+            }
+        }
+    }
+
+    /**
+     * alias表建好后不再修改，重建时整体替换引用，因此可以直接在线程间共享
+     */
+    @Override
+    protected TopicSampler newWorker() {
+        AliasTopicSampler worker = new AliasTopicSampler();
+        worker.rebuildUses = this.rebuildUses;
+        worker.mhSteps = this.mhSteps;
+        worker.tables = this.tables;
+        worker.uses = this.uses;
+        return worker;
+    }
+
+    @Override
+    public int sample(int position, int word, int docLength) {
+        if (++this.uses[word] > this.rebuildUses) {
+            this.tables[word] = build(word);
+            this.uses[word] = 1;
+        }
+        AliasTable table = this.tables[word];
+        this.likelihood = table.pwz;
+
+        //MH链从当前词原来的主题开始
+        int s = this.doc.topics[position];
+        double ps = target(word, s);
+        for (int step = 0; step < this.mhSteps; step++) {
+            int t;
+            double ratio;
+            if ((step & 1) == 0) {
+                //词建议
+                t = table.draw(this.randomProvider, this.numTopics, this.beta);
+                if (t == s) {
+                    continue;
+                }
+                double pt = target(word, t);
+                ratio = pt * (table.count(s) + this.beta) / (ps * (table.count(t) + this.beta));
+                if (ratio >= 1.0 || this.randomProvider.nextDouble() < ratio) {
+                    s = t;
+                    ps = pt;
+                }
+            } else {
+                //文档建议，当前位置视为链的当前状态s，即按 nzd[k] + [k == s] + alpha 抽取
+                double u = this.randomProvider.nextDouble() * (docLength + 1 + this.numTopics * this.alpha);
+                if (u < docLength + 1) {
+                    int i = (int) u;
+                    t = (i == position) ? s : this.doc.topics[i];
+                } else {
+                    t = this.randomProvider.nextInt(this.numTopics);
+                }
+                if (t == s) {
+                    continue;
+                }
+                double pt = target(word, t);
+                ratio = pt * (this.nzd[s] + this.alpha) / (ps * (this.nzd[t] + this.alpha));
+                if (ratio >= 1.0 || this.randomProvider.nextDouble() < ratio) {
+                    s = t;
+                    ps = pt;
+                }
+            }
+        }
+        return s;
+    }
+
+    private double target(int word, int topic) {
+        return (this.nzd[topic] + this.alpha) * (this.nwz.get(word, topic) + this.beta)
+                / (this.nz[topic] + this.numWords * this.beta);
+    }
+
+    /**
+     * Vose alias 方法建表，只包含当前计数非零的主题
+     */
+    private AliasTable build(int word) {
+        int[] counts = this.row;
+        this.nwz.getRow(word, counts);
+        int n = 0;
+        int mass = 0;
+        double pwz = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            if (counts[i] > 0) {
+                n++;
+                mass += counts[i];
+            }
+            pwz += (counts[i] + this.beta) / (this.nz[i] + this.numWords * this.beta);
+        }
+        AliasTable table = new AliasTable(n);
+        table.mass = mass;
+        table.pwz = pwz;
+        int j = 0;
+        for (int i = 0; i < this.numTopics; i++) {
+            if (counts[i] > 0) {
+                table.topics[j] = i;
+                table.counts[j] = counts[i];
+                j++;
+            }
+        }
+        if (n == 0) {
+            return table;
+        }
+
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            this.scaled[i] = (double) table.counts[i] * n / mass;
+            if (this.scaled[i] < 1.0) {
+                this.small[numSmall++] = i;
+            } else {
+                this.large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int l = this.small[--numSmall];
+            int g = this.large[--numLarge];
+            table.prob[l] = this.scaled[l];
+            table.alias[l] = g;
+            this.scaled[g] = (this.scaled[g] + this.scaled[l]) - 1.0;
+            if (this.scaled[g] < 1.0) {
+                this.small[numSmall++] = g;
+            } else {
+                this.large[numLarge++] = g;
+            }
+        }
+        while (numLarge > 0) {
+            table.prob[this.large[--numLarge]] = 1.0;
+        }
+        //浮点误差导致的剩余项
+        while (numSmall > 0) {
+            table.prob[this.small[--numSmall]] = 1.0;
+        }
+        return table;
+    }
+
+    /**
+     * 一个词的 alias 表，topics 升序排列
+     */
+    private static class AliasTable {
+        int[] topics;
+        int[] counts;
+        double[] prob;
+        int[] alias;
+        int mass;
+        //建表时 sum_k p(w|z)，作为 LIKELIHOOD 计数的近似值
+        double pwz;
+
+        AliasTable(int n) {
+            this.topics = new int[n];
+            this.counts = new int[n];
+            this.prob = new double[n];
+            this.alias = new int[n];
+        }
+
+        /**
+         * 按 counts[k] + beta 抽取一个主题
+         */
+        int draw(Random random, int numTopics, double beta) {
+            double u = random.nextDouble() * (this.mass + numTopics * beta);
+            if (u >= this.mass) {
+                return random.nextInt(numTopics);
+            }
+            int i = random.nextInt(this.topics.length);
+            if (random.nextDouble() < this.prob[i]) {
+                return this.topics[i];
+            }
+            return this.topics[this.alias[i]];
+        }
+
+        /**
+         * 建表时某个主题的计数，二分查找
+         */
+        int count(int topic) {
+            int lo = 0;
+            int hi = this.topics.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (this.topics[mid] < topic) {
+                    lo = mid + 1;
+                } else if (this.topics[mid] > topic) {
+                    hi = mid - 1;
+                } else {
+                    return this.counts[mid];
+                }
+            }
+            return 0;
+        }
+    }
+}
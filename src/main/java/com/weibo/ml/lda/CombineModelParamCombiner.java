@@ -0,0 +1,91 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.CombineSequenceFileInputFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * CombineModelParamReducer 的 map 端 combiner
+ * 1. 同一个词的多个 delta_nwz（isPartial为true）先在map端相加，合并为一行输出
+ * 2. 上一轮的nwz（isPartial为false）单独相加输出，不与delta混在一起，reducer的语义不变
+ * 3. 每个delta文件中一个词只出现一次，需要一个map读入多个文件combiner才有作用，见setupJob
+ * 输出使用稀疏格式，见WordInfoWritable
+ * Created by yuanye8 on 16/10/18.
+ */
+public class CombineModelParamCombiner implements Reducer<IntWritable, WordInfoWritable, IntWritable, WordInfoWritable> {
+    private WordInfoWritable partial = null;
+    private WordInfoWritable reference = null;
+
+    /**
+     * 为 combine 作业设置combiner，并让每个map读入多个文件：按map数把输入平均分成若干个 CombineFileSplit；
+     * key 使用 IntWritable 的 RawComparator
+     */
+    public static void setupJob(JobConf job, int numMaps) throws IOException {
+        long bytes = 0;
+        for (Path path : FileInputFormat.getInputPaths(job)) {
+            FileSystem fs = path.getFileSystem(job);
+            for (FileStatus status : fs.listStatus(path)) {
+                bytes += status.getLen();
+            }
+        }
+        job.setInputFormat(CombineSequenceFileInputFormat.class);
+        job.setLong("mapreduce.input.fileinputformat.split.maxsize", Math.max(1L, bytes / Math.max(1, numMaps) + 1));
+        job.setCombinerClass(CombineModelParamCombiner.class);
+        //词号按序列化后的字节比较，排序时不反序列化key
+        job.setOutputKeyComparatorClass(IntWritable.Comparator.class);
+    }
+
+    public void configure(JobConf jobConf) {
+    }
+
+    public void reduce(IntWritable key, Iterator<WordInfoWritable> values, OutputCollector<IntWritable, WordInfoWritable> outputCollector, Reporter reporter) throws IOException {
+        boolean hasPartial = false;
+        boolean hasReference = false;
+        while (values.hasNext()) {
+            WordInfoWritable v = values.next();
+            if (this.partial == null || this.partial.size() != v.size()) {
+                this.partial = new WordInfoWritable(v.size());
+                this.partial.setSparse(true);
+                this.partial.setIsPartial(true);
+                this.reference = new WordInfoWritable(v.size());
+                this.reference.setSparse(true);
+                this.reference.setIsPartial(false);
+            }
+            WordInfoWritable sum;
+            if (v.isPartial()) {
+                if (!hasPartial) {
+                    Arrays.fill(this.partial.getTopicCounts(), 0);
+                    hasPartial = true;
+                }
+                sum = this.partial;
+            } else {
+                if (!hasReference) {
+                    Arrays.fill(this.reference.getTopicCounts(), 0);
+                    hasReference = true;
+                }
+                sum = this.reference;
+            }
+            v.addTo(sum.getTopicCounts());
+        }
+        if (hasPartial) {
+            outputCollector.collect(key, this.partial);
+        }
+        if (hasReference) {
+            outputCollector.collect(key, this.reference);
+        }
+    }
+
+    public void close() throws IOException {
+    }
+}
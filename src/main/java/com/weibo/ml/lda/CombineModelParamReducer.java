@@ -13,6 +13,8 @@ import java.util.Iterator;
 /**
  * Combine the word topic counts from different samplers.
  * referenceCount的由来详见GibbsSamplingReducer中delta_nwz的注释
+ * 输入的delta_nwz可以是稠密或稀疏格式（见WordInfoWritable），稀疏格式下没有改变的词只有上一轮的nwz；
+ * 各行用 WordInfoWritable.addTo 直接从读入的数据累加，不逐行展开
  * Created by yuanye8 on 16/9/7.
  */
 public class CombineModelParamReducer implements Reducer<IntWritable, WordInfoWritable, IntWritable, WordInfoWritable> {
@@ -44,21 +46,18 @@ public class CombineModelParamReducer implements Reducer<IntWritable, WordInfoWr
             }
             if (v.isPartial) {
                 //来自多个reducer的delta_nwz汇总
-                for (int i = 0; i < v.size(); i++) {
-                    this.topicCount[i] += v.getTopicCount(i);
-                }
+                v.addTo(this.topicCount);
             } else {
                 /**
                  * 来自上次计算的结果，第一次初始化数据时，referenceCount全部为0
                  */
-                for (int i = 0; i < v.size(); i++) {
-                    this.referenceCount[i] += v.getTopicCount(i);
-                }
+                v.addTo(this.referenceCount);
             }
             n++;
         }
+        int[] counts = this.outvalue.getTopicCounts();
         for (int i = 0; i< this.topicCount.length; i++) {
-            this.outvalue.setTopicCount(i, this.topicCount[i] + this.referenceCount[i]);
+            counts[i] = this.topicCount[i] + this.referenceCount[i];
         }
         //所有key下的部分合成为一个word的整体topics分布
         this.outvalue.setIsPartial(false);
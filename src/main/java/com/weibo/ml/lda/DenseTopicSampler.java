@@ -0,0 +1,84 @@
+package com.weibo.ml.lda;
+
+import java.util.Random;
+
+/**
+ * 全量采样：每个词都计算K个主题的概率，是最常用的精确采样方式
+ * 1. 分母 1 / (nz[k] + V * beta) 缓存在inv中，只在 -1/+1 改变nz时更新对应的主题
+ * 2. 文档长度的分母 (doc_length + K * alpha) 对所有主题相同，抽样时可以约去
+ * 3. 一次循环得到未归一化的累积概率，再用 random * total 二分查找，不需要归一化
+ * Created by yuanye8 on 16/10/18.
+ */
+public class DenseTopicSampler extends TopicSampler {
+    //未归一化的累积概率
+    private double[] cumulative = null;
+    //1 / (nz[k] + V * beta)
+    private double[] inv = null;
+    //当前词在nwz中的一行
+    private int[] row = null;
+
+    @Override
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        super.init(numTopics, alpha, beta, nwz, nz, randomProvider);
+        this.cumulative = new double[numTopics];
+        this.inv = new double[numTopics];
+        this.row = new int[numTopics];
+        refreshTopicCounts();
+    }
+
+    @Override
+    protected void afterTopicUpdate(int topic) {
+        this.inv[topic] = 1.0 / (this.nz[topic] + this.numWords * this.beta);
+    }
+
+    @Override
+    public void refreshTopicCounts() {
+        for (int i = 0; i < this.numTopics; i++) {
+            this.inv[i] = 1.0 / (this.nz[i] + this.numWords * this.beta);
+        }
+    }
+
+    @Override
+    protected TopicSampler newWorker() {
+        return new DenseTopicSampler();
+    }
+
+    @Override
+    public int sample(int position, int word, int docLength) {
+        int[] counts = this.row;
+        this.nwz.getRow(word, counts);
+        int[] nzd = this.nzd;
+        double[] inv = this.inv;
+        double[] cumulative = this.cumulative;
+        double alpha = this.alpha;
+        double beta = this.beta;
+        double total = 0.0;
+        double likelihood = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            //word这个词在第i个topic下的概率
+            double pwz = (counts[i] + beta) * inv[i];
+            total += pwz * (nzd[i] + alpha);
+            cumulative[i] = total;
+            likelihood += pwz;
+        }
+        this.likelihood = likelihood;
+        return sampleInCumulative(cumulative, this.randomProvider.nextDouble() * total);
+    }
+
+    /**
+     * 二分查找第一个大于u的累积概率
+     */
+    private int sampleInCumulative(double[] cumulative, double u) {
+        int lo = 0;
+        int hi = this.numTopics - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > u) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+}
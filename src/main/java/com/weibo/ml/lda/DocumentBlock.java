@@ -0,0 +1,146 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 按词顺序采样时缓存的一批文档
+ * 按文档顺序采样时，每个词都访问nwz中随机的一行，内存带宽成为瓶颈。
+ * 这里先缓存一批文档，建立 word -> (文档, 位置) 的倒排索引，再按词id依次采样同一个词的所有出现，
+ * 采样过程中nwz[word]这一行一直留在缓存中
+ * Created by yuanye8 on 16/10/18.
+ */
+public class DocumentBlock {
+    private Text[] keys;
+    private DocumentWritable[] docs;
+    private int[][] nzd;
+    private int size = 0;
+    private int numTopics;
+    private int numWords;
+
+    //倒排索引：词w的所有出现位于 occurDoc/occurPos 的 [wordStart[w], wordStart[w + 1]) 区间
+    private int[] wordStart;
+    //建立索引时每个词下一个出现的写入位置
+    private int[] next;
+    private int[] occurDoc;
+    private int[] occurPos;
+
+    public DocumentBlock(int capacity, int numTopics, int numWords) {
+        this.keys = new Text[capacity];
+        this.docs = new DocumentWritable[capacity];
+        this.nzd = new int[capacity][];
+        this.numTopics = numTopics;
+        this.numWords = numWords;
+        this.wordStart = new int[numWords + 1];
+        this.next = new int[numWords];
+        this.occurDoc = new int[1024];
+        this.occurPos = new int[1024];
+    }
+
+    /**
+     * 复制文档，Hadoop会复用key和value对象
+     */
+    public void add(Text key, DocumentWritable doc) {
+        if (this.keys[this.size] == null) {
+            this.keys[this.size] = new Text();
+            this.docs[this.size] = new DocumentWritable();
+            this.nzd[this.size] = new int[this.numTopics];
+        }
+        this.keys[this.size].set(key);
+        this.docs[this.size].set(doc);
+        this.size++;
+    }
+
+    public boolean isFull() {
+        return this.size == this.keys.length;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * 按词id顺序对块内所有词做一次 -1 -> sampling -> +1
+     * @return 所有词 sum_k p(w|z) 之和
+     */
+    public double sampleByWord(TopicSampler sampler, WordTopicMatrix deltaNwz) {
+        buildIndex();
+        double likelihood = 0.0;
+        for (int word = 0; word < this.numWords; word++) {
+            int end = this.wordStart[word + 1];
+            if (this.wordStart[word] == end) {
+                continue;
+            }
+            for (int j = this.wordStart[word]; j < end; j++) {
+                int d = this.occurDoc[j];
+                int i = this.occurPos[j];
+                DocumentWritable doc = this.docs[d];
+                int topic = doc.topics[i];
+                sampler.startDocument(doc, this.nzd[d]);
+
+                sampler.removeToken(word, topic);
+                if (deltaNwz != null) {
+                    deltaNwz.add(word, topic, -1);
+                }
+
+                topic = sampler.sample(i, word, doc.getNumWords() - 1);
+                likelihood += sampler.getLikelihood();
+
+                doc.topics[i] = topic;
+                sampler.addToken(word, topic);
+                if (deltaNwz != null) {
+                    deltaNwz.add(word, topic, 1);
+                }
+                sampler.endDocument();
+            }
+        }
+        return likelihood;
+    }
+
+    /**
+     * 输出块内的文档并清空
+     */
+    public void emit(OutputCollector<Text, DocumentWritable> outputCollector) throws IOException {
+        for (int d = 0; d < this.size; d++) {
+            outputCollector.collect(this.keys[d], this.docs[d]);
+        }
+        this.size = 0;
+    }
+
+    /**
+     * 统计每个文档的nzd，并用计数排序建立倒排索引
+     */
+    private void buildIndex() {
+        int numTokens = 0;
+        int[] start = this.wordStart;
+        Arrays.fill(start, 0);
+        for (int d = 0; d < this.size; d++) {
+            DocumentWritable doc = this.docs[d];
+            GibbsSamplingReducer.computeNzd(doc, this.nzd[d]);
+            for (int i = 0; i < doc.getNumWords(); i++) {
+                start[doc.words[i] + 1]++;
+            }
+            numTokens += doc.getNumWords();
+        }
+        for (int w = 0; w < this.numWords; w++) {
+            start[w + 1] += start[w];
+        }
+        if (this.occurDoc.length < numTokens) {
+            this.occurDoc = new int[numTokens];
+            this.occurPos = new int[numTokens];
+        }
+        int[] next = this.next;
+        System.arraycopy(start, 0, next, 0, this.numWords);
+        for (int d = 0; d < this.size; d++) {
+            DocumentWritable doc = this.docs[d];
+            for (int i = 0; i < doc.getNumWords(); i++) {
+                int j = next[doc.words[i]]++;
+                this.occurDoc[j] = d;
+                this.occurPos[j] = i;
+            }
+        }
+    }
+}
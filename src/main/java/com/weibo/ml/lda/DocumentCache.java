@@ -0,0 +1,142 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * 一次MapReduce任务内做多轮采样时，缓存reducer分到的全部文档
+ * 前 memoryDocs 篇文档保存在内存中，其余的写入本地磁盘文件，每轮采样时读出旧文件并写入新文件
+ * Created by yuanye8 on 16/10/18.
+ */
+public class DocumentCache {
+    public static Logger LOG = Logger.getAnonymousLogger();
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int PROGRESS_DOCS = 2000;
+
+    private int memoryDocs;
+    private List<Text> keys = new ArrayList<Text>();
+    private List<DocumentWritable> docs = new ArrayList<DocumentWritable>();
+
+    private File spillDir;
+    private File spillFile = null;
+    private DataOutputStream spillOut = null;
+    private int numSpilled = 0;
+
+    public DocumentCache(int memoryDocs, File spillDir) {
+        this.memoryDocs = memoryDocs;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * 复制并缓存文档，Hadoop会复用key和value对象
+     */
+    public void add(Text key, DocumentWritable doc) throws IOException {
+        if (this.docs.size() < this.memoryDocs) {
+            DocumentWritable copy = new DocumentWritable();
+            copy.set(doc);
+            this.keys.add(new Text(key));
+            this.docs.add(copy);
+            return;
+        }
+        if (this.spillOut == null) {
+            this.spillFile = File.createTempFile("lda-docs-", ".spill", this.spillDir);
+            this.spillOut = openOutput(this.spillFile);
+            LOG.info("Memory cache full, spill documents to " + this.spillFile);
+        }
+        key.write(this.spillOut);
+        doc.write(this.spillOut);
+        this.numSpilled++;
+    }
+
+    public int size() {
+        return this.docs.size() + this.numSpilled;
+    }
+
+    /**
+     * 对缓存的所有文档做一轮采样
+     * @param reporter 每采样 PROGRESS_DOCS 篇文档报告一次进度，一轮采样可能超过任务的超时时间
+     * @return 所有词 sum_k p(w|z) 之和
+     */
+    public double sweep(TopicSampler sampler, int[] nzd, WordTopicMatrix deltaNwz, Reporter reporter) throws IOException {
+        double likelihood = 0.0;
+        int n = 0;
+        for (DocumentWritable doc : this.docs) {
+            likelihood += GibbsSamplingReducer.sampleDocument(sampler, doc, nzd, deltaNwz);
+            if (++n % PROGRESS_DOCS == 0) {
+                reporter.progress();
+            }
+        }
+        if (this.spillOut == null) {
+            return likelihood;
+        }
+        this.spillOut.close();
+        File sampled = File.createTempFile("lda-docs-", ".spill", this.spillDir);
+        DataInputStream in = openInput(this.spillFile);
+        DataOutputStream out = openOutput(sampled);
+        Text key = new Text();
+        DocumentWritable doc = new DocumentWritable();
+        for (int i = 0; i < this.numSpilled; i++) {
+            key.readFields(in);
+            doc.readFields(in);
+            likelihood += GibbsSamplingReducer.sampleDocument(sampler, doc, nzd, deltaNwz);
+            if (++n % PROGRESS_DOCS == 0) {
+                reporter.progress();
+            }
+            key.write(out);
+            doc.write(out);
+        }
+        in.close();
+        this.spillFile.delete();
+        this.spillFile = sampled;
+        this.spillOut = out;
+        return likelihood;
+    }
+
+    /**
+     * 输出所有缓存的文档，并删除磁盘文件
+     */
+    public void emit(OutputCollector<Text, DocumentWritable> outputCollector) throws IOException {
+        for (int i = 0; i < this.docs.size(); i++) {
+            outputCollector.collect(this.keys.get(i), this.docs.get(i));
+        }
+        this.keys.clear();
+        this.docs.clear();
+        if (this.spillOut == null) {
+            return;
+        }
+        this.spillOut.close();
+        DataInputStream in = openInput(this.spillFile);
+        Text key = new Text();
+        DocumentWritable doc = new DocumentWritable();
+        for (int i = 0; i < this.numSpilled; i++) {
+            key.readFields(in);
+            doc.readFields(in);
+            outputCollector.collect(key, doc);
+        }
+        in.close();
+        this.spillFile.delete();
+        this.spillOut = null;
+        this.numSpilled = 0;
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    private static DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    }
+}
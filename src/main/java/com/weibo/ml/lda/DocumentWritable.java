@@ -28,6 +28,16 @@ public class DocumentWritable implements Writable{
         this.numWords = n;
     }
 
+    /**
+     * 复制另一篇文档的内容，复用已有数组
+     * @param other
+     */
+    public void set(DocumentWritable other) {
+        setNumWords(other.numWords);
+        System.arraycopy(other.words, 0, this.words, 0, other.numWords);
+        System.arraycopy(other.topics, 0, this.topics, 0, other.numWords);
+    }
+
     /**
      * 重写写数据方法
      * @param dataOutput
@@ -14,9 +14,11 @@ import org.apache.hadoop.mapred.JobConf;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -29,7 +31,7 @@ import java.util.logging.Logger;
 public class ExportModelTool implements GenericTool {
 
     protected static Logger LOG = Logger.getAnonymousLogger();
-    protected int[][] nwz;
+    protected WordTopicMatrix nwz;
     protected int numTopics;
     protected double alpha;
     protected double beta;
@@ -51,7 +53,6 @@ public class ExportModelTool implements GenericTool {
 
     public void exportModel(Path modelPath, Path output, int n) throws IOException {
         this.wordIds = loadWords(new Path(modelPath, "words"));
-        this.nwz = new int[this.wordIds.size()][];
         loadModel(modelPath, n);
         outputModelNwz(output, n);
     }
@@ -64,9 +65,10 @@ public class ExportModelTool implements GenericTool {
         writer.write(this.beta + "\n");
         writer.write(this.numTopics + "\n");
         writer.write(n + "\n");
-        for (int w = 0; w < this.nwz.length; w++) {
+        int[] counts = new int[this.numTopics];
+        for (int w = 0; w < this.nwz.getNumWords(); w++) {
             writer.write(this.wordIds.get(Integer.valueOf(w)));
-            int[] counts = this.nwz[w];
+            this.nwz.getRow(w, counts);
             for (int i = 0; i < this.numTopics; i++) {
                 writer.write(" ");
                 writer.write(Integer.toString(counts[i]));
@@ -97,6 +99,8 @@ public class ExportModelTool implements GenericTool {
         }
 
         LOG.info("Load model parameters, alpha:" + this.alpha + " beta:" + this.beta + " num_topics:" + this.numTopics);
+        //K很大时大部分词只在少数主题下有计数，按混合方式存放
+        this.nwz = WordTopicMatrix.create(this.wordIds.size(), this.numTopics, "hybrid");
 
         Path[] files = { modelPath };
         FileStatus[] modelFiles = fs.listStatus(files, new PathFilter() {
@@ -121,22 +125,27 @@ public class ExportModelTool implements GenericTool {
         }
     }
 
+    /**
+     * 未合并的nwz（见ModelChain）依次累加其中的完整nwz和各delta
+     */
     private void loadNwz(Path input) throws IOException {
         IntWritable word = new IntWritable();
         WordInfoWritable topicCounts = new WordInfoWritable();
-        FolderReader reader = new FolderReader(input);
-        while (reader.next(word, topicCounts)) {
-            int[] counts = this.nwz[word.get()];
-            if (counts == null) {
-                counts = new int[this.numTopics];
-                Arrays.fill(counts, 0);
-                this.nwz[word.get()] = counts;
-            }
-            for (int i = 0; i < this.numTopics; i++) {
-                counts[i] += topicCounts.getTopicCount(i);
+        ModelChain chain = ModelChain.read(FileSystem.get(new JobConf()), input);
+        List<Path> paths = new ArrayList<Path>();
+        paths.add(chain.getBase());
+        paths.addAll(chain.getDeltas());
+        for (Path path : paths) {
+            FolderReader reader = new FolderReader(path);
+            while (reader.next(word, topicCounts)) {
+                for (int i = 0; i < this.numTopics; i++) {
+                    if (topicCounts.getTopicCount(i) != 0) {
+                        this.nwz.add(word.get(), i, topicCounts.getTopicCount(i));
+                    }
+                }
             }
+            reader.close();
         }
-        reader.close();
     }
 
     /**
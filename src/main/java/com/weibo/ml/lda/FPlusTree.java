@@ -0,0 +1,73 @@
+package com.weibo.ml.lda;
+
+/**
+ * F+树：叶子节点保存每个主题的权重，内部节点保存左右子树之和
+ * 更新某个主题的权重和按权重抽样都是 O(log K)，用来代替线性的累加扫描
+ * 节点存放在数组中，根为1，节点i的孩子为2i和2i+1，叶子从capacity开始
+ * Created by yuanye8 on 16/10/18.
+ */
+public class FPlusTree {
+    private double[] nodes;
+    private int capacity;
+    private int size;
+
+    public FPlusTree(int size) {
+        this.size = size;
+        this.capacity = 1;
+        while (this.capacity < size) {
+            this.capacity <<= 1;
+        }
+        this.nodes = new double[this.capacity * 2];
+    }
+
+    /**
+     * 一次性设置所有叶子，O(K)
+     */
+    public void build(double[] weights) {
+        for (int i = 0; i < this.capacity; i++) {
+            this.nodes[this.capacity + i] = i < this.size ? weights[i] : 0.0;
+        }
+        for (int i = this.capacity - 1; i > 0; i--) {
+            this.nodes[i] = this.nodes[2 * i] + this.nodes[2 * i + 1];
+        }
+    }
+
+    public void update(int i, double weight) {
+        int node = this.capacity + i;
+        this.nodes[node] = weight;
+        node >>= 1;
+        while (node > 0) {
+            this.nodes[node] = this.nodes[2 * node] + this.nodes[2 * node + 1];
+            node >>= 1;
+        }
+    }
+
+    public double get(int i) {
+        return this.nodes[this.capacity + i];
+    }
+
+    public double total() {
+        return this.nodes[1];
+    }
+
+    /**
+     * 按权重抽样
+     * @param u [0, total()) 之间的值
+     * @return 叶子下标
+     */
+    public int sample(double u) {
+        int node = 1;
+        while (node < this.capacity) {
+            int left = 2 * node;
+            if (u < this.nodes[left]) {
+                node = left;
+            } else {
+                u -= this.nodes[left];
+                node = left + 1;
+            }
+        }
+        int i = node - this.capacity;
+        //浮点误差可能落到空叶子上
+        return i < this.size ? i : this.size - 1;
+    }
+}
@@ -0,0 +1,134 @@
+package com.weibo.ml.lda;
+
+import java.util.Random;
+
+/**
+ * 基于F+树的精确采样（F+LDA，Yu et al. 2015），适用于K很大的情况
+ * 条件概率 p(z=k) 正比于 (nzd[k] + alpha) * (nwz[w][k] + beta) / (nz[k] + V * beta)，拆成两部分：
+ * 1. beta * (nzd[k] + alpha) / (nz[k] + V * beta)，对K个主题都不为0，保存在F+树中
+ *    每次 -1/+1 只改变一个主题的nzd和nz，对应一个叶子的 O(log K) 更新；换文档时只更新该文档出现过的主题
+ * 2. nwz[w][k] * (nzd[k] + alpha) / (nz[k] + V * beta)，只涉及当前词非零的主题，直接计算
+ * 抽样时先按两部分的总和选择部分，第一部分在树上 O(log K) 抽样，第二部分线性扫描非零主题
+ * Created by yuanye8 on 16/10/18.
+ */
+public class FTreeTopicSampler extends TopicSampler {
+    private FPlusTree tree = null;
+    //1 / (nz[k] + V * beta)
+    private double[] inv = null;
+    //sum_k inv[k]，用于 LIKELIHOOD 计数
+    private double invSum = 0.0;
+    private NonZeroTopicIndex wordTopics = null;
+    private double[] wordProbs = null;
+
+    @Override
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        super.init(numTopics, alpha, beta, nwz, nz, randomProvider);
+        this.inv = new double[numTopics];
+        this.wordProbs = new double[numTopics];
+        this.tree = new FPlusTree(numTopics);
+        refreshTopicCounts();
+        //多线程时wordTopics由fork传入，不重复建立
+        if (this.wordTopics == null) {
+            this.wordTopics = new NonZeroTopicIndex(this.numWords);
+            int[] topics = new int[numTopics];
+            int[] counts = new int[numTopics];
+            for (int w = 0; w < this.numWords; w++) {
+                this.wordTopics.build(w, topics, nwz.getNonZeros(w, topics, counts));
+            }
+        }
+    }
+
+    @Override
+    public void refreshTopicCounts() {
+        double[] weights = new double[this.numTopics];
+        this.invSum = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            this.inv[i] = 1.0 / (this.nz[i] + this.numWords * this.beta);
+            this.invSum += this.inv[i];
+            weights[i] = this.beta * this.alpha * this.inv[i];
+        }
+        this.tree.build(weights);
+    }
+
+    @Override
+    protected TopicSampler newWorker() {
+        FTreeTopicSampler worker = new FTreeTopicSampler();
+        worker.wordTopics = this.wordTopics;
+        return worker;
+    }
+
+    @Override
+    public void startDocument(DocumentWritable doc, int[] nzd) {
+        super.startDocument(doc, nzd);
+        for (int i = 0; i < doc.getNumWords(); i++) {
+            updateLeaf(doc.topics[i]);
+        }
+    }
+
+    @Override
+    public boolean hasDocumentCache() {
+        return true;
+    }
+
+    @Override
+    public void endDocument() {
+        //文档结束后nzd不再有效，出现过的主题恢复为 beta * alpha / (nz[k] + V * beta)
+        for (int i = 0; i < this.doc.getNumWords(); i++) {
+            int topic = this.doc.topics[i];
+            this.tree.update(topic, this.beta * this.alpha * this.inv[topic]);
+        }
+        super.endDocument();
+    }
+
+    @Override
+    protected void afterTopicUpdate(int topic) {
+        this.invSum -= this.inv[topic];
+        this.inv[topic] = 1.0 / (this.nz[topic] + this.numWords * this.beta);
+        this.invSum += this.inv[topic];
+        updateLeaf(topic);
+    }
+
+    @Override
+    protected void wordCountChanged(int word, int topic, int count, int delta) {
+        if (count == 0) {
+            this.wordTopics.remove(word, topic);
+        } else if (count == 1 && delta > 0) {
+            this.wordTopics.add(word, topic);
+        }
+    }
+
+    private void updateLeaf(int topic) {
+        this.tree.update(topic, this.beta * (this.nzd[topic] + this.alpha) * this.inv[topic]);
+    }
+
+    @Override
+    public int sample(int position, int word, int docLength) {
+        int[] topics = this.wordTopics.topics(word);
+        //多线程时其他线程可能正在扩容该行
+        int size = Math.min(this.wordTopics.size(word), topics.length);
+        double wordMass = 0.0;
+        double pwz = 0.0;
+        for (int i = 0; i < size; i++) {
+            int topic = topics[i];
+            int count = this.nwz.get(word, topic);
+            this.wordProbs[i] = count * (this.nzd[topic] + this.alpha) * this.inv[topic];
+            wordMass += this.wordProbs[i];
+            pwz += count * this.inv[topic];
+        }
+        this.likelihood = pwz + this.beta * this.invSum;
+
+        double treeMass = this.tree.total();
+        double sample = this.randomProvider.nextDouble() * (treeMass + wordMass);
+        if (sample < treeMass) {
+            return this.tree.sample(sample);
+        }
+        sample -= treeMass;
+        for (int i = 0; i < size; i++) {
+            sample -= this.wordProbs[i];
+            if (sample < 0) {
+                return topics[i];
+            }
+        }
+        return size > 0 ? topics[size - 1] : this.tree.sample(treeMass * this.randomProvider.nextDouble());
+    }
+}
@@ -0,0 +1,133 @@
+package com.weibo.ml.lda;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * 按行连续存放的词-主题计数矩阵
+ * 1. int[V][] 有V个数组对象，V很大时占用额外的对象头、加重GC，且每次访问多一次指针跳转；这里整体只有一个数组
+ * 2. offHeap为true时存放在堆外的 direct ByteBuffer 中，不占用Java堆，也不被GC扫描。
+ *    单个ByteBuffer不能超过2G，按行分成若干块
+ * Created by yuanye8 on 16/10/18.
+ */
+public class FlatWordTopicMatrix extends WordTopicMatrix {
+    private static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    //堆内存储
+    private int[] data = null;
+    //堆外存储，每块 rowsPerChunk 行
+    private IntBuffer[] chunks = null;
+    private int rowsPerChunk = 0;
+
+    public FlatWordTopicMatrix(int numWords, int numTopics, boolean offHeap) {
+        super(numWords, numTopics);
+        if (offHeap) {
+            this.rowsPerChunk = Math.max(1, MAX_CHUNK_BYTES / 4 / Math.max(1, numTopics));
+            int numChunks = (numWords + this.rowsPerChunk - 1) / this.rowsPerChunk;
+            this.chunks = new IntBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                int rows = Math.min(this.rowsPerChunk, numWords - c * this.rowsPerChunk);
+                //allocateDirect 已清零
+                this.chunks[c] = ByteBuffer.allocateDirect(rows * numTopics * 4)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } else {
+            long size = (long) numWords * numTopics;
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new RuntimeException("Word topic matrix too large for heap storage: "
+                        + numWords + " x " + numTopics + ", use off-heap or hybrid storage.");
+            }
+            this.data = new int[(int) size];
+        }
+    }
+
+    public boolean isOffHeap() {
+        return this.chunks != null;
+    }
+
+    @Override
+    public int get(int word, int topic) {
+        if (this.data != null) {
+            return this.data[word * this.numTopics + topic];
+        }
+        return this.chunks[word / this.rowsPerChunk].get((word % this.rowsPerChunk) * this.numTopics + topic);
+    }
+
+    @Override
+    public void set(int word, int topic, int value) {
+        if (this.data != null) {
+            this.data[word * this.numTopics + topic] = value;
+        } else {
+            this.chunks[word / this.rowsPerChunk].put((word % this.rowsPerChunk) * this.numTopics + topic, value);
+        }
+    }
+
+    @Override
+    public int add(int word, int topic, int delta) {
+        if (this.data != null) {
+            return this.data[word * this.numTopics + topic] += delta;
+        }
+        IntBuffer chunk = this.chunks[word / this.rowsPerChunk];
+        int index = (word % this.rowsPerChunk) * this.numTopics + topic;
+        int value = chunk.get(index) + delta;
+        chunk.put(index, value);
+        return value;
+    }
+
+    @Override
+    public void getRow(int word, int[] row) {
+        if (this.data != null) {
+            System.arraycopy(this.data, word * this.numTopics, row, 0, this.numTopics);
+        } else {
+            IntBuffer chunk = this.chunks[word / this.rowsPerChunk].duplicate();
+            chunk.position((word % this.rowsPerChunk) * this.numTopics);
+            chunk.get(row, 0, this.numTopics);
+        }
+    }
+
+    @Override
+    public void addToRow(int word, int[] row) {
+        for (int i = 0; i < this.numTopics; i++) {
+            row[i] += get(word, i);
+        }
+    }
+
+    @Override
+    public void setRow(int word, int[] row) {
+        if (this.data != null) {
+            System.arraycopy(row, 0, this.data, word * this.numTopics, this.numTopics);
+        } else {
+            IntBuffer chunk = this.chunks[word / this.rowsPerChunk].duplicate();
+            chunk.position((word % this.rowsPerChunk) * this.numTopics);
+            chunk.put(row, 0, this.numTopics);
+        }
+    }
+
+    @Override
+    public int getNonZeros(int word, int[] topics, int[] counts) {
+        int n = 0;
+        for (int i = 0; i < this.numTopics; i++) {
+            int count = get(word, i);
+            if (count != 0) {
+                topics[n] = i;
+                counts[n] = count;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        if (this.data != null) {
+            Arrays.fill(this.data, 0);
+        } else {
+            int[] zeros = new int[this.numTopics];
+            for (int w = 0; w < this.numWords; w++) {
+                setRow(w, zeros);
+            }
+        }
+    }
+}
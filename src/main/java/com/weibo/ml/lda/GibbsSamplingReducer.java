@@ -1,6 +1,6 @@
 package com.weibo.ml.lda;
 
-import com.weibo.tool.FolderReader;
+import com.weibo.misc.RandomFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
@@ -11,9 +11,12 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
 
@@ -29,15 +32,39 @@ import java.util.logging.Logger;
 public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Text, DocumentWritable> {
     public static Logger LOG = Logger.getAnonymousLogger();
     private int numTopics = 0;
-    private double[] probs = null;
-    private int[][] nwz = null;
+    private WordTopicMatrix nwz = null;
     private int[] nzd = null;
     private int[] nz = null;
-    private Random randomProvider = new Random();
+    //由 random.seed 和分区号派生，见RandomFactory
+    private Random randomProvider = null;
+    private long randomSeed = 0;
+    private int partition = -1;
     private double alpha = 0.0;
     private double beta = 0.0;
     private String outputNwz = null;
     private int numWords = 0;
+    //具体的采样算法，由sampler.type指定；sampler.mode为uncollapsed时固定phi采样
+    private TopicSampler sampler = null;
+    //sampler.threads大于1时，由多个线程共享nwz进行采样
+    private SamplingWorkerPool workers = null;
+    //sampler.order为word时，按块缓存文档并按词顺序采样
+    private DocumentBlock block = null;
+    //sampler.sweeps大于1时，缓存本reducer的全部文档，在close中再做 sweeps - 1 轮采样后输出
+    private int sweeps = 1;
+    private DocumentCache cache = null;
+    //sampler.pipeline为true时，读入、采样、输出在三个线程上流水进行
+    private SamplingPipeline pipeline = null;
+    //本轮参与采样的文档比例，其余文档原样输出，不改变nwz
+    private double docFraction = 1.0;
+    private long docSeed = 0;
+    private OutputCollector<Text, DocumentWritable> outputCollector = null;
+    private Reporter reporter = null;
+    //进入本轮时的 log p(w, z)，文档部分按 likelihood.doc.fraction 抽样估计后计入计数器；
+    //词部分由各reducer按词号分片计算，在close中写到输出目录，见GibbsSamplingTool.WORD_LIKELIHOOD_PREFIX
+    private JointLikelihood jointLikelihood = null;
+    private double likelihoodFraction = 1.0;
+    private double wordLikelihood = 0.0;
+    private int[] likelihoodNzd = null;
 
     /**
      * 用于记录nwz的改变
@@ -49,15 +76,21 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
      * 写入磁盘，再通过一个MapReduce任务，将所有的改变量汇总叠加，得到一个
      * word最后的改变量，即新的nwz
      */
-    private int[][] delta_nwz = null;
+    private WordTopicMatrix delta_nwz = null;
+    //共享模型且nwz随采样改变时不单独记录delta_nwz，本任务的改变量由overlay减去读入的delta得到，见loadSharedModelParameters
+    private MappedWordTopicMatrix sharedNwz = null;
+    private List<Path> sharedDeltas = null;
+    private int modelLoadThreads = 4;
+    //nwz和delta_nwz的存储方式，见WordTopicMatrix.create
+    private String modelStorage = WordTopicMatrix.DEFAULT_STORAGE;
+    //delta_nwz是否按稀疏格式输出，只输出有改变的词，见WordInfoWritable
+    private boolean sparseDelta = true;
 
     public void configure(JobConf conf) {
         //主题数 K
         this.numTopics = conf.getInt("num.topics", 0);
         //词规模 V
         this.numWords = conf.getInt("num.words", 0);
-        //吉布斯采样使用，词被分到每个主题的概率
-        this.probs = new double[this.numTopics];
         //某个文档被分到K个主题下的次数
         this.nzd = new int[this.numTopics];
         //某个主题得到的分配到其下的词的数目
@@ -65,78 +98,161 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
         this.outputNwz = conf.get("output.nwz");
         this.alpha = (double) conf.getFloat("alpha", 0.0F);
         this.beta = (double) conf.getFloat("beta", 0.0F);
+        if (conf.get("sampler.mode", "collapsed").equals("uncollapsed")) {
+            this.sampler = new UncollapsedTopicSampler();
+        } else {
+            this.sampler = TopicSampler.create(conf.get("sampler.type", "dense"));
+        }
+        this.sampler.configure(conf);
+        this.modelStorage = conf.get("model.storage", WordTopicMatrix.DEFAULT_STORAGE);
+        this.sparseDelta = conf.getBoolean("model.sparse.delta", true);
+        this.partition = RandomFactory.taskPartition(conf);
+        this.randomSeed = RandomFactory.taskSeed(conf);
+        this.randomProvider = RandomFactory.create(conf.get("random.type", RandomFactory.DEFAULT_TYPE), this.randomSeed);
+        this.modelLoadThreads = conf.getInt("model.load.threads", 4);
         try {
-            loadModelParameters(conf.get("input.nwz"));
+            if (conf.getBoolean("model.shared", false)) {
+                loadSharedModelParameters(conf, this.sampler instanceof UncollapsedTopicSampler);
+            } else {
+                loadModelParameters(conf, conf.get("input.nwz"), this.modelLoadThreads);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        this.sampler.init(this.numTopics, this.alpha, this.beta, this.nwz, this.nz, this.randomProvider);
+        this.docFraction = (double) conf.getFloat("sampler.doc.fraction", 1.0F);
+        this.docSeed = conf.getLong("sampler.doc.seed", 0L);
+        this.jointLikelihood = new JointLikelihood(this.numTopics, this.numWords, this.alpha, this.beta);
+        this.likelihoodFraction = (double) conf.getFloat("likelihood.doc.fraction", 1.0F);
+        this.likelihoodNzd = new int[this.numTopics];
+        //nwz是所有reducer相同的全局计数，各reducer只计算自己的一片；close总会执行，没有分到文档的reducer也会输出
+        if (this.partition >= 0) {
+            this.wordLikelihood = this.jointLikelihood.wordPart(this.nwz, this.nz,
+                    this.partition, Math.max(1, conf.getNumReduceTasks()));
+        } else {
+            this.wordLikelihood = this.jointLikelihood.wordPart(this.nwz, this.nz);
+        }
+        int numThreads = conf.getInt("sampler.threads", 1);
+        this.sweeps = conf.getInt("sampler.sweeps", 1);
+        boolean wordOrder = conf.get("sampler.order", "doc").equals("word");
+        if (wordOrder && this.sampler.hasDocumentCache()) {
+            //按词顺序每个词都切换文档，这些采样器每次切换都重建文档缓存，总代价变为文档长度的平方
+            LOG.warning("Word-major sampling order only supports dense and alias samplers, fall back to document order.");
+            wordOrder = false;
+        }
+        if (this.sweeps > 1) {
+            if (numThreads > 1 || wordOrder) {
+                LOG.warning("Multiple sweeps per job run in document order on a single thread, ignore sampler.threads and sampler.order.");
+            }
+            //YARN把容器内的java.io.tmpdir设为任务的本地目录，任务结束后自动清理
+            this.cache = new DocumentCache(conf.getInt("sampler.cache.docs", 1000000),
+                    new File(System.getProperty("java.io.tmpdir")));
+        } else if (wordOrder) {
+            if (numThreads > 1) {
+                LOG.warning("Word-major sampling order runs on a single thread, ignore sampler.threads.");
+            }
+            this.block = new DocumentBlock(conf.getInt("sampler.block.docs", 2000), this.numTopics, this.numWords);
+        } else if (numThreads > 1) {
+            this.workers = new SamplingWorkerPool(this.sampler, numThreads, this.nz, this.numWords,
+                    conf.getInt("sampler.sync.docs", 100),
+                    conf.get("random.type", RandomFactory.DEFAULT_TYPE), this.randomSeed, this.delta_nwz != null);
+        }
+        if (conf.getBoolean("sampler.pipeline", false)) {
+            if (this.cache != null || this.block != null || this.workers != null) {
+                LOG.warning("Pipelined sampling only applies to single-threaded document order with one sweep, ignore sampler.pipeline.");
+            } else {
+                this.pipeline = new SamplingPipeline(this.sampler, this.nzd, this.delta_nwz,
+                        conf.getInt("sampler.pipeline.docs", 256));
+            }
+        }
     }
 
     /**
-     * 读取上一次存储的模型数据
-     * @param modelParamFile nwz数据，即word->topic（phi矩阵）
-     * @throws IOException
+     * 映射本节点共享的模型文件，nwz的修改记在本任务私有的稀疏overlay中，见SharedModelCache
+     * 1. 未合并的nwz（见ModelChain）只映射其中完整的nwz，之后各轮的delta累加到overlay中
+     * 2. 采样改变nwz时，overlay 减去读入的delta就是本任务的 delta_nwz，不再另存一份
+     * 3. nwzFixed 为true时（uncollapsed）采样不改变nwz，delta_nwz 单独按稀疏方式记录
      */
-    private void loadModelParameters(String modelParamFile) throws IOException {
+    private void loadSharedModelParameters(JobConf conf, boolean nwzFixed) throws IOException {
         long startTime = System.currentTimeMillis();
-        Path modelParamPath = new Path(modelParamFile);
-        FolderReader fr = new FolderReader(modelParamPath);
-        IntWritable key = new IntWritable();
-        WordInfoWritable value = new WordInfoWritable(this.numTopics);
-        Arrays.fill(this.nz, 0);
-
-        this.nwz = new int[this.numWords][];
-        this.delta_nwz = new int[this.numWords][];
-
-        while (fr.next(key, value)) {
-            int[] count = new int[this.numTopics];
-            for (int i = 0; i < this.numTopics; i++) {
-                count[i] = value.getTopicCount(i);
-                this.nz[i] += count[i];
-            }
-            this.nwz[key.get()] = count;
-        }
-
-        for (int i = 0; i < this.numWords; i++) {
-            if (this.nwz[i] == null)  {
-                this.nwz[i] = new int[this.numTopics];
-            }
-            if (this.delta_nwz[i] == null) {
-                this.delta_nwz[i] = new int[this.numTopics];
-            }
-            Arrays.fill(this.delta_nwz[i], 0);
+        Path modelPath = new Path(conf.get("input.nwz"));
+        ModelChain chain = ModelChain.read(modelPath.getFileSystem(conf), modelPath);
+        MappedWordTopicMatrix shared = SharedModelCache.open(conf, chain.getBase().toString(),
+                this.numWords, this.numTopics);
+        shared.getTopicCounts(this.nz);
+        ParallelModelLoader.addDeltas(conf, chain.getDeltas(), shared, this.nz, this.modelLoadThreads);
+        this.nwz = shared;
+        if (nwzFixed) {
+            this.delta_nwz = new HybridWordTopicMatrix(this.numWords, this.numTopics);
+        } else {
+            this.sharedNwz = shared;
+            this.sharedDeltas = chain.getDeltas();
         }
-        fr.close();
         long duration = System.currentTimeMillis() - startTime;
-        LOG.info("Load model parameters using " + duration + " milliseconds.");
+        LOG.info("Map shared model parameters using " + duration + " milliseconds.");
+    }
+
+    /**
+     * 读取上一次存储的模型数据
+     * @param modelParamFile nwz数据，即word->topic（phi矩阵），可以是未合并的nwz，见ModelChain
+     * @param numThreads 并行读取part文件的线程数，见ParallelModelLoader
+     * @throws IOException
+     */
+    private void loadModelParameters(JobConf conf, String modelParamFile, int numThreads) throws IOException {
+        Arrays.fill(this.nz, 0);
+        //新分配的矩阵已清零，nwz.N中没有的词计数为0
+        this.nwz = WordTopicMatrix.create(this.numWords, this.numTopics, this.modelStorage);
+        this.delta_nwz = WordTopicMatrix.create(this.numWords, this.numTopics, this.modelStorage);
+        ParallelModelLoader.load(conf, new Path(modelParamFile), this.nwz, this.nz, numThreads);
     }
 
     public void reduce(Text key, Iterator<DocumentWritable> values, OutputCollector<Text, DocumentWritable> outputCollector, Reporter reporter) throws IOException {
+        this.reporter = reporter;
         while (values.hasNext()) {
             DocumentWritable doc = values.next();
-            computeNzd(doc, this.nzd);
-            double likelihood = 0.0;
-            int doc_length = doc.getNumWords();
-
-            for (int i = 0; i < doc.getNumWords(); i++) {
-                int topic = doc.topics[i];
-                int word = doc.words[i];
-
-                this.nzd[topic]--;
-                this.nz[topic]--;
-                this.nwz[word][topic]--;
-                delta_nwz[word][topic]--;
-
-                likelihood += computeSamplingProbability(this.nzd, word, this.probs, this.alpha, this.beta, doc_length - 1);
-                topic = sampleInDistribution(this.probs, this.randomProvider);
-
-                doc.topics[i] = topic;
-                this.nzd[topic]++;
-                this.nz[topic]++;
-                this.nwz[word][topic]++;
-                this.delta_nwz[word][topic]++;
-
+            //采样之前计算，与0号reducer读入的nwz对应同一个状态
+            if (this.likelihoodFraction >= 1.0 || isSampled(key, this.likelihoodFraction, 0L)) {
+                computeNzd(doc, this.likelihoodNzd);
+                double docLikelihood = this.jointLikelihood.docPart(doc, this.likelihoodNzd) / Math.min(1.0, this.likelihoodFraction);
+                reporter.incrCounter(
+                        GibbsSamplingTool.GibbsSamplingCounter.LOG_LIKELIHOOD,
+                        (long) (docLikelihood * GibbsSamplingTool.LOG_LIKELIHOOD_RESOLUTION));
+            }
+            if (this.docFraction < 1.0 && !isSampled(key, this.docFraction, this.docSeed)) {
+                reporter.incrCounter(GibbsSamplingTool.GibbsSamplingCounter.SKIPPED_DOCS, 1);
+                if (this.pipeline != null) {
+                    this.pipeline.submit(key, doc, false, outputCollector);
+                } else if (this.workers != null) {
+                    this.workers.collect(key, doc, outputCollector);
+                } else {
+                    outputCollector.collect(key, doc);
+                }
+                continue;
+            }
+            if (this.cache != null) {
+                //第一轮在读入时完成，只有最后一轮计入 LIKELIHOOD
+                this.outputCollector = outputCollector;
+                sampleDocument(this.sampler, doc, this.nzd, this.delta_nwz);
+                this.cache.add(key, doc);
+                continue;
+            }
+            if (this.workers != null) {
+                this.workers.submit(key, doc, outputCollector, reporter);
+                continue;
             }
+            if (this.pipeline != null) {
+                this.pipeline.submit(key, doc, true, outputCollector);
+                continue;
+            }
+            if (this.block != null) {
+                this.outputCollector = outputCollector;
+                this.block.add(key, doc);
+                if (this.block.isFull()) {
+                    flushBlock();
+                }
+                continue;
+            }
+            double likelihood = sampleDocument(this.sampler, doc, this.nzd, this.delta_nwz);
 
             reporter.incrCounter(
                     GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
@@ -146,42 +262,81 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
     }
 
     /**
-     * 模拟随机抽样，随机抽取一个主题
-     * @param probs
-     * @param randomProvider
-     * @return
+     * 根据文档key和种子决定文档是否被选中，种子相同时结果确定，不同种子选中的文档不同
      */
-    private int sampleInDistribution(double[] probs, Random randomProvider) {
-        double sample = randomProvider.nextDouble();
-        double sum = 0.0D;
-        for (int i = 0; i < probs.length; i++) {
-            sum += probs[i];
-            if (sample < sum) {
-                return i;
-            }
+    private static boolean isSampled(Text key, double fraction, long seed) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L + seed;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-53 < fraction;
+    }
+
+    /**
+     * 对缓存的文档再做 sweeps - 1 轮采样，并输出
+     */
+    private void sweepCache() throws IOException {
+        if (this.cache.size() == 0) {
+            return;
+        }
+        double likelihood = 0.0;
+        for (int s = 2; s <= this.sweeps; s++) {
+            long startTime = System.currentTimeMillis();
+            likelihood = this.cache.sweep(this.sampler, this.nzd, this.delta_nwz, this.reporter);
+            long duration = System.currentTimeMillis() - startTime;
+            LOG.info("Sweep #" + s + " on " + this.cache.size() + " documents using " + duration + " milliseconds.");
         }
-        return probs.length - 1;
+        this.reporter.incrCounter(
+                GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
+                (long) (likelihood * GibbsSamplingTool.RESOLUTION));
+        this.cache.emit(this.outputCollector);
     }
 
-    private double computeSamplingProbability(int[] nzd, int word, double[] probs, double alpha, double beta, int doc_length) {
-        Arrays.fill(probs, 0.0);
-        double norm = 0.0;
-        //遗留代码，之前替换pzd的分母
-        double dummyNorm = 1.0;
+    /**
+     * 按词顺序采样缓存的文档，并输出
+     */
+    private void flushBlock() throws IOException {
+        if (this.block.size() == 0) {
+            return;
+        }
+        double likelihood = this.block.sampleByWord(this.sampler, this.delta_nwz);
+        this.reporter.incrCounter(
+                GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
+                (long) (likelihood * GibbsSamplingTool.RESOLUTION));
+        this.block.emit(this.outputCollector);
+    }
+
+    /**
+     * 对一篇文档的每个词做一次 -1 -> sampling -> +1
+     * @param deltaNwz 记录nwz的改变，为null时不记录
+     * @return 文档中每个词 sum_k p(w|z) 之和
+     */
+    public static double sampleDocument(TopicSampler sampler, DocumentWritable doc, int[] nzd, WordTopicMatrix deltaNwz) {
+        computeNzd(doc, nzd);
         double likelihood = 0.0;
-        for (int i = 0; i < this.numTopics; i++) {
-            //word这个词在第i个topic下的概率
-            double pwz = (this.nwz[word][i] + beta) / (this.nz[i] + this.nwz.length * beta);
-            //第i个主题在该文档下的概率
-            double pzd = (nzd[i] + alpha) / (doc_length + this.numTopics * alpha);
-            //该文档选中该主题的概率
-            probs[i] = (pwz * pzd);
-            norm += probs[i];
-            likelihood += pwz;
-        }
-        for (int i = 0; i < this.numTopics; i++) {
-            probs[i] /= norm;
+        int doc_length = doc.getNumWords();
+        sampler.startDocument(doc, nzd);
+
+        for (int i = 0; i < doc.getNumWords(); i++) {
+            int topic = doc.topics[i];
+            int word = doc.words[i];
+
+            sampler.removeToken(word, topic);
+            if (deltaNwz != null) {
+                deltaNwz.add(word, topic, -1);
+            }
+
+            topic = sampler.sample(i, word, doc_length - 1);
+            likelihood += sampler.getLikelihood();
+
+            doc.topics[i] = topic;
+            sampler.addToken(word, topic);
+            if (deltaNwz != null) {
+                deltaNwz.add(word, topic, 1);
+            }
+
         }
+        sampler.endDocument();
         return likelihood;
     }
 
@@ -191,7 +346,7 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
      * @param doc 当前文档
      * @param nzd 当前文档的主题分布
      */
-    public void computeNzd(DocumentWritable doc, int[] nzd) {
+    public static void computeNzd(DocumentWritable doc, int[] nzd) {
         Arrays.fill(nzd, 0);
         for (int i = 0; i < doc.getNumWords(); i++) {
             nzd[doc.topics[i]]++;
@@ -200,6 +355,13 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
 
     public void saveModelParameters(String modelParamPart) throws IOException {
         long startTime = System.currentTimeMillis();
+        WordTopicMatrix delta = this.delta_nwz;
+        if (this.sharedNwz != null) {
+            //采样已结束，overlay减去读入的delta后即为本任务的改变量
+            delta = this.sharedNwz.getOverlay();
+            ParallelModelLoader.addDeltas(new JobConf(), this.sharedDeltas, delta, new int[this.numTopics],
+                    this.modelLoadThreads, -1);
+        }
         JobConf envConf = new JobConf();
         SequenceFile.Writer writer = SequenceFile.createWriter(
                 FileSystem.get(envConf),
@@ -210,22 +372,57 @@ public class GibbsSamplingReducer implements Reducer<Text, DocumentWritable, Tex
         );
         IntWritable key = new IntWritable();
         WordInfoWritable value = new WordInfoWritable(numTopics);
-        for (int i = 0; i < nwz.length; i++) {
+        value.setSparse(this.sparseDelta);
+        int rows = 0;
+        for (int i = 0; i < this.numWords; i++) {
             key.set(i);
-            for (int j = 0; j < numTopics; j++) {
-                value.setTopicCount(j, delta_nwz[i][j]);
+            delta.getRow(i, value.getTopicCounts());
+            //稀疏格式下没有改变的词不输出，combine时只有上一轮的nwz
+            if (this.sparseDelta && value.numNonZeros() == 0) {
+                continue;
             }
             value.setIsPartial(true);
             writer.append(key, value);
+            rows++;
         }
         writer.close();
         long duration = System.currentTimeMillis() - startTime;
-        LOG.info("Save model parameters using " + duration + " milliseconds.");
+        LOG.info("Save " + rows + " rows of model parameters using " + duration + " milliseconds.");
+    }
+
+    private void saveWordLikelihood(String file) throws IOException {
+        JobConf envConf = new JobConf();
+        DataOutputStream out = FileSystem.get(envConf).create(new Path(file), true);
+        out.writeDouble(this.wordLikelihood);
+        out.close();
     }
 
     public void close() throws IOException {
-        //此处的nextInt是个伪随机数
-        String partName = "part-" + Math.abs(randomProvider.nextInt());
+        if (this.workers != null) {
+            this.workers.finish(this.delta_nwz);
+        }
+        if (this.block != null) {
+            flushBlock();
+        }
+        if (this.cache != null) {
+            sweepCache();
+        }
+        if (this.pipeline != null) {
+            //采样结束后即可输出delta_nwz，与输出线程输出剩余文档同时进行
+            this.pipeline.finishSampling();
+        }
+        if (this.reporter != null) {
+            this.reporter.incrCounter(GibbsSamplingTool.GibbsSamplingCounter.TOKENS, this.sampler.getTokens());
+            this.reporter.incrCounter(GibbsSamplingTool.GibbsSamplingCounter.CHANGED_TOKENS, this.sampler.getChangedTokens());
+        }
+        //按分区号命名，重试的任务覆盖失败任务留下的文件；取不到分区号时用随机数；作业关闭了reduce的推测执行
+        String partName = this.partition >= 0
+                ? String.format("part-%05d", this.partition)
+                : "part-" + Math.abs(this.randomProvider.nextInt());
         saveModelParameters(outputNwz + "/" + partName);
+        saveWordLikelihood(outputNwz + "/" + GibbsSamplingTool.WORD_LIKELIHOOD_PREFIX + partName);
+        if (this.pipeline != null) {
+            this.pipeline.finishOutput(this.reporter);
+        }
     }
 }
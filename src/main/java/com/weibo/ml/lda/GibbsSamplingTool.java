@@ -2,15 +2,21 @@ package com.weibo.ml.lda;
 
 import com.weibo.mapred.MapReduceJobConf;
 import com.weibo.misc.Flags;
+import com.weibo.misc.RandomFactory;
 import com.weibo.tool.GenericTool;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.IdentityMapper;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by yuanye8 on 16/9/2.
@@ -26,10 +32,137 @@ import java.io.IOException;
  * one machine. If we do the sampling in the map stage, the same NWZ-loading
  * work would be repeated several times on one machine, which is a waste of
  * resource and significantly slows down the whole training process.
+ *
+ * With compact_interval > 1 the combine job is deferred: the reducers' NWZ
+ * changes are kept as delta directories, the output NWZ only lists the last
+ * full NWZ and the deltas (see ModelChain), and the next sampling job sums
+ * them while loading. One combine job runs every compact_interval jobs.
  */
 public class GibbsSamplingTool implements GenericTool {
-    public  enum GibbsSamplingCounter {LIKELIHOOD};
+    public  enum GibbsSamplingCounter {LIKELIHOOD, SKIPPED_DOCS, LOG_LIKELIHOOD, TOKENS, CHANGED_TOKENS};
     public static double RESOLUTION = 0.01;
+    //log p(w, z) 乘以LOG_LIKELIHOOD_RESOLUTION后取整计数
+    public static double LOG_LIKELIHOOD_RESOLUTION = 1000.0;
+    //各reducer写在delta_nwz目录中的 log p(w | z) 分片，以 _ 开头，读取nwz时忽略
+    public static final String WORD_LIKELIHOOD_PREFIX = "_word_likelihood-";
+    //采样算法，见TopicSampler.create
+    private String samplerType = "dense";
+    //collapsed: 折叠吉布斯采样; uncollapsed: 每轮迭代固定phi采样
+    private String samplingMode = "collapsed";
+
+    //alias采样器：每个词的alias表使用多少次后重建，0表示K次
+    private int aliasRebuildUses = 0;
+    //alias采样器：每个词的MH步数
+    private int mhSteps = 2;
+    //每个reducer内的采样线程数
+    private int samplerThreads = 1;
+    //采样顺序，doc: 按文档；word: 按块缓存文档后按词
+    private String samplingOrder = "doc";
+    private int blockDocs = 2000;
+    //每个任务内的采样轮数，以及reducer在内存中缓存的文档数，超出部分写入本地磁盘
+    private int sweepsPerJob = 1;
+    private int cacheDocs = 1000000;
+    //参与采样的文档比例及选择文档的种子，其余文档原样输出
+    private double docFraction = 1.0;
+    private long docSeed = 0;
+    //随机数类型及本次任务的种子，0表示不固定种子
+    private String randomType = RandomFactory.DEFAULT_TYPE;
+    private long randomSeed = 0;
+    //reducer中nwz的存储方式
+    private String modelStorage = WordTopicMatrix.DEFAULT_STORAGE;
+    //reducer输出的nwz改变量是否使用稀疏格式
+    private boolean sparseDelta = true;
+    //同一节点上的reducer是否共享一份本地映射的nwz
+    private boolean sharedModel = false;
+    private String modelCacheDir = SharedModelCache.DEFAULT_CACHE_DIR;
+    //reducer中读入、采样、输出是否流水进行，及缓冲的文档数
+    private boolean pipeline = false;
+    private int pipelineDocs = 256;
+    //reducer并行读取nwz的线程数
+    private int modelLoadThreads = 4;
+    //每隔多少轮运行一次 combine 作业，其余各轮只记录delta，见ModelChain
+    private int compactInterval = 1;
+    //计算log p(w, z)时抽样的文档比例
+    private double likelihoodDocFraction = 1.0;
+
+    //最近一次采样任务开始时的 log p(w, z)，以及任务中主题改变的词所占比例
+    private double logLikelihood = 0.0;
+    private double changedFraction = 0.0;
+
+    public void setSamplerType(String samplerType) {
+        this.samplerType = samplerType;
+    }
+
+    public void setSamplingMode(String samplingMode) {
+        this.samplingMode = samplingMode;
+    }
+
+    public void setSamplerThreads(int samplerThreads) {
+        this.samplerThreads = samplerThreads;
+    }
+
+    public void setSamplingOrder(String samplingOrder, int blockDocs) {
+        this.samplingOrder = samplingOrder;
+        this.blockDocs = blockDocs;
+    }
+
+    public void setSweepsPerJob(int sweepsPerJob, int cacheDocs) {
+        this.sweepsPerJob = sweepsPerJob;
+        this.cacheDocs = cacheDocs;
+    }
+
+    public void setDocFraction(double docFraction, long docSeed) {
+        this.docFraction = docFraction;
+        this.docSeed = docSeed;
+    }
+
+    public void setRandom(String randomType, long randomSeed) {
+        this.randomType = randomType;
+        this.randomSeed = randomSeed;
+    }
+
+    public void setModelStorage(String modelStorage) {
+        this.modelStorage = modelStorage;
+    }
+
+    public void setSparseDelta(boolean sparseDelta) {
+        this.sparseDelta = sparseDelta;
+    }
+
+    public void setPipeline(boolean pipeline, int pipelineDocs) {
+        this.pipeline = pipeline;
+        this.pipelineDocs = pipelineDocs;
+    }
+
+    public void setModelLoadThreads(int modelLoadThreads) {
+        this.modelLoadThreads = modelLoadThreads;
+    }
+
+    public void setCompactInterval(int compactInterval) {
+        this.compactInterval = compactInterval;
+    }
+
+    public void setSharedModel(boolean sharedModel, String modelCacheDir) {
+        this.sharedModel = sharedModel;
+        this.modelCacheDir = modelCacheDir;
+    }
+
+    public void setLikelihoodDocFraction(double likelihoodDocFraction) {
+        this.likelihoodDocFraction = likelihoodDocFraction;
+    }
+
+    public double getLogLikelihood() {
+        return this.logLikelihood;
+    }
+
+    public double getChangedFraction() {
+        return this.changedFraction;
+    }
+
+    public void setAliasOptions(int aliasRebuildUses, int mhSteps) {
+        this.aliasRebuildUses = aliasRebuildUses;
+        this.mhSteps = mhSteps;
+    }
 
     public void run(String args[]) throws IOException {
         Flags flags = new Flags();
@@ -43,8 +176,45 @@ public class GibbsSamplingTool implements GenericTool {
         flags.add("num_words");
         flags.add("map_num");
         flags.add("reduce_num");
+        flags.addWithDefaultValue("sampler", "dense", "'dense': compute all K topics. 'sparse': SparseLDA bucketed sampling. 'alias': alias table Metropolis-Hastings. 'ftree': exact F+tree sampling for large K. [default 'dense']");
+        flags.addWithDefaultValue("sampling_mode", "collapsed", "'collapsed': collapsed Gibbs sampling, nwz changes after every token. 'uncollapsed': sample against p(w|z) fixed from the previous nwz, no locks between sampler threads; the sampler flag is ignored. [default 'collapsed']");
+        flags.addWithDefaultValue("alias_rebuild_uses", "0", "rebuild a word's alias table after this many draws, 0 means num_topics. [default 0]");
+        flags.addWithDefaultValue("mh_steps", "2", "Metropolis-Hastings steps per token for the alias sampler. [default 2]");
+        flags.addWithDefaultValue("sampler_threads", "1", "sampling threads inside each reducer, sharing one copy of nwz. [default 1]");
+        flags.addWithDefaultValue("sampling_order", "doc", "'doc': sample documents one by one. 'word': buffer block_docs documents and sample all occurrences of a word together, only with sampler 'dense' or 'alias' in collapsed mode, otherwise falls back to 'doc'. [default 'doc']");
+        flags.addWithDefaultValue("block_docs", "2000", "documents per block for word-major sampling order. [default 2000]");
+        flags.addWithDefaultValue("sweeps_per_job", "1", "Gibbs sweeps over its documents in each reducer before writing documents and nwz. [default 1]");
+        flags.addWithDefaultValue("cache_docs", "1000000", "documents each reducer keeps in memory when sweeps_per_job > 1, the rest is spilled to local disk. [default 1000000]");
+        flags.addWithDefaultValue("doc_fraction", "1.0", "fraction of documents to sample, the others are written unchanged. [default 1.0]");
+        flags.addWithDefaultValue("likelihood_doc_fraction", "1.0", "fraction of documents used to estimate log p(w, z), scaled up to the whole corpus. [default 1.0]");
+        flags.addWithDefaultValue("random_type", "fast", "'fast': xoroshiro128+, not thread-safe, one stream per task and sampling thread. 'java': java.util.Random. [default 'fast']");
+        flags.addWithDefaultValue("random_seed", "0", "seed from which all task and thread random streams are derived, 0 uses a different seed each run. [default 0]");
+        flags.addWithDefaultValue("model_storage", "heap", "storage of the word-topic counts in each reducer. 'heap': one flat array on the Java heap. 'offheap': flat direct memory outside the Java heap, size the container memory accordingly. 'hybrid': sorted (topic, count) pairs for rare words and dense arrays for frequent ones, for models with thousands of topics. [default 'heap']");
+        flags.addWithDefaultValue("sparse_delta", "true", "write the per-reducer nwz changes as varint (topic, count) pairs of touched words only, instead of all K counts of every word. [default true]");
+        flags.addWithDefaultValue("shared_model", "false", "localize nwz once per node into a binary file under model_cache_dir and memory-map it read-only in every reducer; each reducer keeps only its own changes, as sparse rows. [default false]");
+        flags.addWithDefaultValue("model_cache_dir", "/tmp/hadoop-lda-model", "node-local directory, writable by all tasks, for the shared model files. [default /tmp/hadoop-lda-model]");
+        flags.addWithDefaultValue("model_load_threads", "4", "threads each reducer uses to read the nwz part files in parallel. [default 4]");
+        flags.addWithDefaultValue("pipeline", "false", "decode, sample and write documents on separate threads in each reducer so CPU and I/O overlap; applies to one sampler thread in doc order with one sweep per job. [default false]");
+        flags.addWithDefaultValue("pipeline_docs", "256", "documents buffered between the pipeline stages. [default 256]");
+        flags.addWithDefaultValue("compact_interval", "1", "run the job that adds the reducers' nwz changes to the full nwz once every this many sampling jobs; in between output_nwz only lists the last full nwz and the delta directories, which the next job sums while loading. [default 1]");
         flags.parseAndCheck(args);
 
+        setSamplerType(flags.getString("sampler"));
+        setSamplingMode(flags.getString("sampling_mode"));
+        setSamplerThreads(flags.getInt("sampler_threads"));
+        setSamplingOrder(flags.getString("sampling_order"), flags.getInt("block_docs"));
+        setAliasOptions(flags.getInt("alias_rebuild_uses"), flags.getInt("mh_steps"));
+        setSweepsPerJob(flags.getInt("sweeps_per_job"), flags.getInt("cache_docs"));
+        setDocFraction(flags.getDouble("doc_fraction"), 0);
+        setLikelihoodDocFraction(flags.getDouble("likelihood_doc_fraction"));
+        setModelStorage(flags.getString("model_storage"));
+        setSparseDelta(flags.getBoolean("sparse_delta"));
+        setSharedModel(flags.getBoolean("shared_model"), flags.getString("model_cache_dir"));
+        setModelLoadThreads(flags.getInt("model_load_threads"));
+        setPipeline(flags.getBoolean("pipeline"), flags.getInt("pipeline_docs"));
+        setCompactInterval(flags.getInt("compact_interval"));
+        setRandom(flags.getString("random_type"), Long.parseLong(flags.getString("random_seed")));
+
         double likelihood = sampling(
                                         new Path(flags.getString("input_docs")), new Path(flags.getString("output_docs")),
                                         new Path(flags.getString("input_nwz")), new Path(flags.getString("output_nwz")),
@@ -54,7 +224,8 @@ public class GibbsSamplingTool implements GenericTool {
                                     );
 
 
-        System.out.println("Done with likelihood " + likelihood);
+        System.out.println("Done with likelihood " + likelihood + ", log p(w, z) " + this.logLikelihood
+                + ", changed tokens " + this.changedFraction);
     }
 
     public double sampling(
@@ -80,29 +251,112 @@ public class GibbsSamplingTool implements GenericTool {
         job.set("beta", Double.toString(beta));
         job.set("num.topics", Integer.toString(numTopics));
         job.set("num.words", Integer.toString(numWords));
+        job.set("sampler.type", this.samplerType);
+        job.set("sampler.mode", this.samplingMode);
+        job.setInt("alias.rebuild.uses", this.aliasRebuildUses);
+        job.setInt("alias.mh.steps", this.mhSteps);
+        job.setInt("sampler.threads", this.samplerThreads);
+        job.set("sampler.order", this.samplingOrder);
+        job.setInt("sampler.block.docs", this.blockDocs);
+        job.setInt("sampler.sweeps", this.sweepsPerJob);
+        job.setInt("sampler.cache.docs", this.cacheDocs);
+        job.set("sampler.doc.fraction", Double.toString(this.docFraction));
+        job.setLong("sampler.doc.seed", this.docSeed);
+        job.set("likelihood.doc.fraction", Double.toString(this.likelihoodDocFraction));
+        job.set("model.storage", this.modelStorage);
+        job.setBoolean("model.sparse.delta", this.sparseDelta);
+        job.setBoolean("model.shared", this.sharedModel);
+        job.set("model.cache.dir", this.modelCacheDir);
+        job.setInt("model.load.threads", this.modelLoadThreads);
+        job.setBoolean("sampler.pipeline", this.pipeline);
+        job.setInt("sampler.pipeline.docs", this.pipelineDocs);
+        job.set("random.type", this.randomType);
+        if (this.randomSeed != 0) {
+            job.setLong("random.seed", this.randomSeed);
+        }
         job.setMapReduce(IdentityMapper.class, GibbsSamplingReducer.class);
         job.setKeyValueClass(Text.class, DocumentWritable.class, Text.class, DocumentWritable.class);
+        //reducer在close中直接把nwz写到固定的文件名，推测执行的另一个尝试会截断已完成的文件
+        job.setReduceSpeculativeExecution(false);
 
         RunningJob runningJob = JobClient.runJob(job);
         runningJob.waitForCompletion();
 
-        double likelihood = runningJob.getCounters().getCounter(GibbsSamplingCounter.LIKELIHOOD) / GibbsSamplingTool.RESOLUTION;
+        Counters counters = runningJob.getCounters();
+        double likelihood = counters.getCounter(GibbsSamplingCounter.LIKELIHOOD) / GibbsSamplingTool.RESOLUTION;
+        this.logLikelihood = counters.getCounter(GibbsSamplingCounter.LOG_LIKELIHOOD) / LOG_LIKELIHOOD_RESOLUTION
+                + readWordLikelihood(fs, tmpNwz);
+        long tokens = counters.getCounter(GibbsSamplingCounter.TOKENS);
+        this.changedFraction = tokens > 0 ? (double) counters.getCounter(GibbsSamplingCounter.CHANGED_TOKENS) / tokens : 0.0;
         
-        combineModelParam(inputNwz, tmpNwz, outputNwz, map, reduce);
-        fs.delete(tmpNwz);
+        //inputNwz可能是未合并的nwz，本轮的delta接在它的delta之后
+        ModelChain chain = ModelChain.read(fs, inputNwz);
+        if (chain.getDeltas().size() + 1 < this.compactInterval) {
+            Path delta = ModelChain.deltaPath(outputNwz).makeQualified(fs);
+            if (fs.exists(delta)) {
+                fs.delete(delta, true);
+            }
+            fs.rename(tmpNwz, delta);
+            chain.append(delta).write(fs, outputNwz);
+        } else {
+            List<Path> deltas = new ArrayList<Path>(chain.getDeltas());
+            deltas.add(tmpNwz);
+            combineModelParam(chain.getBase(), deltas, outputNwz, map, reduce);
+            fs.delete(tmpNwz);
+        }
         return likelihood;
     }
 
-    private void combineModelParam(Path refNwz, Path inputNwz, Path outputNwz, int map, int reduce) throws IOException {
+    /**
+     * 汇总各reducer计算的 log p(w | z) 分片，读完后删除
+     */
+    private double readWordLikelihood(FileSystem fs, Path dir) throws IOException {
+        FileStatus[] parts = fs.listStatus(dir, new PathFilter() {
+            public boolean accept(Path path) {
+                return path.getName().startsWith(WORD_LIKELIHOOD_PREFIX);
+            }
+        });
+        double likelihood = 0.0;
+        for (FileStatus part : parts) {
+            FSDataInputStream in = fs.open(part.getPath());
+            likelihood += in.readDouble();
+            in.close();
+            fs.delete(part.getPath(), false);
+        }
+        return likelihood;
+    }
+
+    /**
+     * 把未合并的nwz合并为完整的nwz，写回原路径；已是完整的nwz时不做任何事
+     */
+    public void compact(Path nwz, int map, int reduce) throws IOException {
+        FileSystem fs = FileSystem.get(new JobConf());
+        ModelChain chain = ModelChain.read(fs, nwz);
+        if (chain.getDeltas().isEmpty()) {
+            return;
+        }
+        Path compacted = ModelChain.compactPath(nwz).makeQualified(fs);
+        if (fs.exists(compacted)) {
+            fs.delete(compacted, true);
+        }
+        combineModelParam(chain.getBase(), chain.getDeltas(), compacted, map, reduce);
+        fs.delete(nwz, true);
+        fs.rename(compacted, nwz);
+    }
+
+    private void combineModelParam(Path refNwz, List<Path> inputNwz, Path outputNwz, int map, int reduce) throws IOException {
         MapReduceJobConf job = new MapReduceJobConf(getClass(), map, reduce);
         job.setJobName("CombineModelParametersForLDA");
-        SequenceFileInputFormat.addInputPath(job, inputNwz);
+        for (Path delta : inputNwz) {
+            SequenceFileInputFormat.addInputPath(job, delta);
+        }
         SequenceFileInputFormat.addInputPath(job, refNwz);
         SequenceFileOutputFormat.setOutputPath(job, outputNwz);
         job.setMapReduce(IdentityMapper.class, CombineModelParamReducer.class);
         job.setKeyValueClass(
                 IntWritable.class, WordInfoWritable.class,
                 IntWritable.class, WordInfoWritable.class);
+        CombineModelParamCombiner.setupJob(job, map);
 
         RunningJob runningJob = JobClient.runJob(job);
         runningJob.waitForCompletion();
@@ -0,0 +1,291 @@
+package com.weibo.ml.lda;
+
+/**
+ * 稀疏/稠密混合存储的词-主题计数矩阵
+ * 1. K很大（几千）时，大部分词只在少数主题下出现，稠密的 V×K 矩阵几乎全是0，
+ *    这里低频词按主题号升序存放(topic, count)对，高频词存放长度为K的稠密数组
+ * 2. 稀疏行的非零主题超过 K/4 时转为稠密行，稠密行的非零主题少于 K/8 时转回稀疏行，
+ *    两个阈值之间留有余地，计数在阈值附近变化时不会反复转换
+ * 3. 稀疏行格式为 [size, topic0, count0, topic1, count1, ...]，size与数据放在同一个数组中，
+ *    其他线程不加锁读取时不会出现size与数组长度不一致而越界；全为0的行为null，不占用内存
+ * Created by yuanye8 on 16/10/18.
+ */
+public class HybridWordTopicMatrix extends WordTopicMatrix {
+    private static final int INITIAL_PAIRS = 2;
+
+    //稠密行，稀疏行对应位置为null
+    private final int[][] dense;
+    //稀疏行，稠密行对应位置为null
+    private final int[][] sparse;
+    //稠密行中非零主题的个数
+    private final int[] denseNonZeros;
+    private final int toDenseThreshold;
+    private final int toSparseThreshold;
+
+    public HybridWordTopicMatrix(int numWords, int numTopics) {
+        super(numWords, numTopics);
+        this.dense = new int[numWords][];
+        this.sparse = new int[numWords][];
+        this.denseNonZeros = new int[numWords];
+        this.toDenseThreshold = denseThreshold(numTopics);
+        this.toSparseThreshold = numTopics / 8;
+    }
+
+    /**
+     * @return 非零主题超过该值时按稠密数组存放
+     */
+    public static int denseThreshold(int numTopics) {
+        return Math.max(1, numTopics / 4);
+    }
+
+    /**
+     * 在稀疏行中二分查找主题
+     * @return 找到时返回pair的下标，否则返回 -(插入位置 + 1)
+     */
+    private static int find(int[] pairs, int topic) {
+        int low = 0;
+        int high = pairs[0] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int t = pairs[1 + 2 * mid];
+            if (t < topic) {
+                low = mid + 1;
+            } else if (t > topic) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int get(int word, int topic) {
+        int[] row = this.dense[word];
+        if (row != null) {
+            return row[topic];
+        }
+        int[] pairs = this.sparse[word];
+        if (pairs == null) {
+            return 0;
+        }
+        int i = find(pairs, topic);
+        return i >= 0 ? pairs[2 + 2 * i] : 0;
+    }
+
+    @Override
+    public void set(int word, int topic, int value) {
+        add(word, topic, value - get(word, topic));
+    }
+
+    @Override
+    public int add(int word, int topic, int delta) {
+        int[] row = this.dense[word];
+        if (row != null) {
+            int old = row[topic];
+            int value = old + delta;
+            row[topic] = value;
+            if (old == 0 && value != 0) {
+                this.denseNonZeros[word]++;
+            } else if (old != 0 && value == 0) {
+                if (--this.denseNonZeros[word] < this.toSparseThreshold) {
+                    toSparse(word);
+                }
+            }
+            return value;
+        }
+        if (delta == 0) {
+            return get(word, topic);
+        }
+        int[] pairs = this.sparse[word];
+        if (pairs == null) {
+            pairs = new int[1 + 2 * INITIAL_PAIRS];
+            this.sparse[word] = pairs;
+        }
+        int i = find(pairs, topic);
+        int size = pairs[0];
+        if (i >= 0) {
+            int value = pairs[2 + 2 * i] + delta;
+            if (value != 0) {
+                pairs[2 + 2 * i] = value;
+            } else {
+                System.arraycopy(pairs, 3 + 2 * i, pairs, 1 + 2 * i, 2 * (size - i - 1));
+                pairs[0] = size - 1;
+            }
+            return value;
+        }
+        if (size + 1 > this.toDenseThreshold) {
+            toDense(word);
+            return add(word, topic, delta);
+        }
+        i = -(i + 1);
+        if (1 + 2 * (size + 1) > pairs.length) {
+            //先在新数组中写好再替换，其他线程读到的总是完整的一行
+            int[] grown = new int[1 + 2 * Math.min(this.toDenseThreshold, size * 2)];
+            System.arraycopy(pairs, 1, grown, 1, 2 * i);
+            System.arraycopy(pairs, 1 + 2 * i, grown, 3 + 2 * i, 2 * (size - i));
+            grown[1 + 2 * i] = topic;
+            grown[2 + 2 * i] = delta;
+            grown[0] = size + 1;
+            this.sparse[word] = grown;
+        } else {
+            System.arraycopy(pairs, 1 + 2 * i, pairs, 3 + 2 * i, 2 * (size - i));
+            pairs[1 + 2 * i] = topic;
+            pairs[2 + 2 * i] = delta;
+            pairs[0] = size + 1;
+        }
+        return delta;
+    }
+
+    private void toDense(int word) {
+        int[] row = new int[this.numTopics];
+        int[] pairs = this.sparse[word];
+        int size = pairs == null ? 0 : pairs[0];
+        for (int i = 0; i < size; i++) {
+            row[pairs[1 + 2 * i]] = pairs[2 + 2 * i];
+        }
+        this.denseNonZeros[word] = size;
+        //先放入稠密行再去掉稀疏行
+        this.dense[word] = row;
+        this.sparse[word] = null;
+    }
+
+    private void toSparse(int word) {
+        int[] row = this.dense[word];
+        int size = this.denseNonZeros[word];
+        int[] pairs = null;
+        if (size > 0) {
+            pairs = new int[1 + 2 * Math.max(size, INITIAL_PAIRS)];
+            int n = 0;
+            for (int i = 0; i < this.numTopics; i++) {
+                if (row[i] != 0) {
+                    pairs[1 + 2 * n] = i;
+                    pairs[2 + 2 * n] = row[i];
+                    n++;
+                }
+            }
+            pairs[0] = n;
+        }
+        this.denseNonZeros[word] = 0;
+        this.sparse[word] = pairs;
+        this.dense[word] = null;
+    }
+
+    @Override
+    public void getRow(int word, int[] row) {
+        int[] denseRow = this.dense[word];
+        if (denseRow != null) {
+            System.arraycopy(denseRow, 0, row, 0, this.numTopics);
+            return;
+        }
+        for (int i = 0; i < this.numTopics; i++) {
+            row[i] = 0;
+        }
+        int[] pairs = this.sparse[word];
+        if (pairs != null) {
+            int size = pairs[0];
+            for (int i = 0; i < size; i++) {
+                row[pairs[1 + 2 * i]] = pairs[2 + 2 * i];
+            }
+        }
+    }
+
+    @Override
+    public void addToRow(int word, int[] row) {
+        int[] denseRow = this.dense[word];
+        if (denseRow != null) {
+            for (int i = 0; i < this.numTopics; i++) {
+                row[i] += denseRow[i];
+            }
+            return;
+        }
+        int[] pairs = this.sparse[word];
+        if (pairs != null) {
+            int size = pairs[0];
+            for (int i = 0; i < size; i++) {
+                row[pairs[1 + 2 * i]] += pairs[2 + 2 * i];
+            }
+        }
+    }
+
+    @Override
+    public void setRow(int word, int[] row) {
+        int n = 0;
+        for (int i = 0; i < this.numTopics; i++) {
+            if (row[i] != 0) {
+                n++;
+            }
+        }
+        if (n > this.toDenseThreshold) {
+            int[] denseRow = new int[this.numTopics];
+            System.arraycopy(row, 0, denseRow, 0, this.numTopics);
+            this.denseNonZeros[word] = n;
+            this.dense[word] = denseRow;
+            this.sparse[word] = null;
+            return;
+        }
+        int[] pairs = null;
+        if (n > 0) {
+            pairs = new int[1 + 2 * n];
+            int k = 0;
+            for (int i = 0; i < this.numTopics; i++) {
+                if (row[i] != 0) {
+                    pairs[1 + 2 * k] = i;
+                    pairs[2 + 2 * k] = row[i];
+                    k++;
+                }
+            }
+            pairs[0] = n;
+        }
+        this.denseNonZeros[word] = 0;
+        this.sparse[word] = pairs;
+        this.dense[word] = null;
+    }
+
+    @Override
+    public int getNonZeros(int word, int[] topics, int[] counts) {
+        int[] row = this.dense[word];
+        int n = 0;
+        if (row != null) {
+            for (int i = 0; i < this.numTopics; i++) {
+                if (row[i] != 0) {
+                    topics[n] = i;
+                    counts[n] = row[i];
+                    n++;
+                }
+            }
+            return n;
+        }
+        int[] pairs = this.sparse[word];
+        if (pairs != null) {
+            n = pairs[0];
+            for (int i = 0; i < n; i++) {
+                topics[i] = pairs[1 + 2 * i];
+                counts[i] = pairs[2 + 2 * i];
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        for (int w = 0; w < this.numWords; w++) {
+            this.dense[w] = null;
+            this.sparse[w] = null;
+            this.denseNonZeros[w] = 0;
+        }
+    }
+
+    /**
+     * @return 以稠密数组存放的词数
+     */
+    public int getNumDenseRows() {
+        int n = 0;
+        for (int w = 0; w < this.numWords; w++) {
+            if (this.dense[w] != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
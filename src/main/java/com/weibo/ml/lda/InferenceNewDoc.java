@@ -30,6 +30,7 @@ public class InferenceNewDoc implements GenericTool {
         flags.add("input");
         flags.add("output");
         flags.add("top_n", "topics number of each doc");
+        flags.addWithDefaultValue("random_seed", "0", "seed of the sampling in inference, 0 uses a different seed each run. [default 0]");
         flags.parseAndCheck(args);
 
         inputPath = flags.getString("input");
@@ -41,6 +42,10 @@ public class InferenceNewDoc implements GenericTool {
         this.writer = new TextFileWriter(outputPath);
         this.ldaModel = new LdaModel();
         this.ldaModel.loadModel(modelPath);
+        long seed = Long.parseLong(flags.getString("random_seed"));
+        if (seed != 0) {
+            this.ldaModel.setRandomSeed(seed);
+        }
 
         String line;
         while ((line = reader.readLine()) != null) {
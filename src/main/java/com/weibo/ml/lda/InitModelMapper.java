@@ -23,6 +23,8 @@ public class InitModelMapper implements Mapper<Text, Text, Text, DocumentWritabl
     Map<String, Integer> wordmap = null;
     DocumentWritable doc = new DocumentWritable();
     List<Integer> wordbuf = new ArrayList<Integer>();
+    //是否把文档中的词按编号排序，同一个词的采样集中在一起，相邻词访问的nwz行也相近
+    boolean sortTokens = false;
 
     public void map(Text key, Text value, OutputCollector<Text,
             DocumentWritable> outputCollector, Reporter reporter) throws IOException {
@@ -40,10 +42,14 @@ public class InitModelMapper implements Mapper<Text, Text, Text, DocumentWritabl
         for (int i = 0; i < this.wordbuf.size(); i++) {
             this.doc.words[i] = this.wordbuf.get(i).intValue();
         }
+        if (this.sortTokens) {
+            Arrays.sort(this.doc.words, 0, this.doc.getNumWords());
+        }
         outputCollector.collect(key, this.doc);
     }
 
     public void configure(JobConf jobConf) {
+        this.sortTokens = jobConf.getBoolean("sort.tokens", false);
         try {
             this.wordmap = loadWordList(jobConf.get("wordlist"));
         } catch (IOException e) {
@@ -1,5 +1,7 @@
 package com.weibo.ml.lda;
 
+import com.weibo.misc.RandomFactory;
+import com.weibo.tool.FolderReader;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
@@ -10,53 +12,199 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.logging.Logger;
 
 /**
- * nwz二维数组记录了每个word被分在不同topic下的次数
+ * nwz（WordTopicMatrix）记录了每个word被分在不同topic下的次数
+ * init.mode 决定每个词的初始主题：
+ * 1. random: 均匀随机
+ * 2. sequential: 按顺序对每个词做一次吉布斯采样，条件概率使用本reducer已分配的计数，
+ *    p(z = k) 正比于 (nzd[k] + alpha) * (nwz[w][k] + b) / (nz[k] + V * b)，b = beta + K / 已处理的文档数。
+ *    最初几篇文档的计数几乎为空，直接使用beta时每篇文档会独占一个空主题，之后的文档都被分到这些混合的主题中，
+ *    增大的b使前面的文档按词项均匀分布，随文档增多逐渐退回beta
+ * 3. model: 与sequential相同，但计数再加上 init.model 指定的已导出模型（ExportModelTool的文本格式）的平均计数，
+ *    模型中没有的词只使用本reducer的计数
  * Created by yuanye8 on 16/9/6.
  */
 public class InitModelReducer implements Reducer<Text, DocumentWritable, Text, DocumentWritable> {
     int numTopics = 0;
     int numWords = 0;
-    int[][] nwz = null;
+    WordTopicMatrix nwz = null;
     String outputNwz = null;
-    Random randomProvider = new Random();
+    private static Logger LOG = Logger.getAnonymousLogger();
+    Random randomProvider = null;
+    int partition = -1;
+    String initMode = "random";
+    double alpha = 0.0;
+    double beta = 0.0;
+    int[] nz = null;
+    int[] nzd = null;
+    long numDocs = 0;
+    double[] cumulative = null;
+    //已导出模型的计数，模型为最近n轮之和，使用时乘以seedScale = 1 / n
+    WordTopicMatrix seedNwz = null;
+    //抽样时当前词的计数
+    int[] row = null;
+    int[] seedRow = null;
+    double[] seedNz = null;
+    double seedScale = 0.0;
+    //nwz是否按稀疏格式输出，见WordInfoWritable
+    boolean sparseDelta = true;
 
     public void configure(JobConf jobConf) {
         this.numTopics = jobConf.getInt("num.topics", 0);
         this.numWords = jobConf.getInt("num.words", 0);
         this.outputNwz = jobConf.get("output.nwz");
-        this.nwz = new int[this.numWords][];
+        this.nwz = WordTopicMatrix.create(this.numWords, this.numTopics,
+                jobConf.get("model.storage", WordTopicMatrix.DEFAULT_STORAGE));
+        this.randomProvider = RandomFactory.forTask(jobConf);
+        this.partition = RandomFactory.taskPartition(jobConf);
+        this.sparseDelta = jobConf.getBoolean("model.sparse.delta", true);
+        this.initMode = jobConf.get("init.mode", "random");
+        if (this.initMode.equals("random")) {
+            return;
+        }
+        if (!this.initMode.equals("sequential") && !this.initMode.equals("model")) {
+            throw new RuntimeException("Unknown init mode: " + this.initMode);
+        }
+        this.alpha = (double) jobConf.getFloat("alpha", 0.0F);
+        this.beta = (double) jobConf.getFloat("beta", 0.0F);
+        this.nz = new int[this.numTopics];
+        this.nzd = new int[this.numTopics];
+        this.cumulative = new double[this.numTopics];
+        this.row = new int[this.numTopics];
+        this.seedNz = new double[this.numTopics];
+        if (this.initMode.equals("model")) {
+            this.seedRow = new int[this.numTopics];
+            try {
+                loadSeedModel(jobConf, jobConf.get("init.model"), jobConf.get("wordlist"));
+            } catch (IOException e) {
+                //没有种子模型无法按模型初始化，直接让任务失败
+                throw new RuntimeException("Failed to load init model " + jobConf.get("init.model"), e);
+            }
+        }
+    }
+
+    /**
+     * 读取已导出的文本模型，按wordlist把词转换为id
+     */
+    private void loadSeedModel(JobConf jobConf, String model, String wordlist) throws IOException {
+        long startTime = System.currentTimeMillis();
+        Map<String, Integer> wordmap = new HashMap<String, Integer>();
+        FolderReader fr = new FolderReader(new Path(wordlist));
+        Text word = new Text();
+        IntWritable id = new IntWritable();
+        while (fr.next(word, id)) {
+            wordmap.put(word.toString(), Integer.valueOf(id.get()));
+        }
+        fr.close();
+
+        Path modelPath = new Path(model);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                modelPath.getFileSystem(jobConf).open(modelPath), "UTF-8"));
+        //alpha、beta、主题数、导出时累加的轮数
+        reader.readLine();
+        reader.readLine();
+        int modelTopics = Integer.parseInt(reader.readLine().trim());
+        if (modelTopics != this.numTopics) {
+            reader.close();
+            throw new RuntimeException("Init model has " + modelTopics + " topics, expect " + this.numTopics);
+        }
+        this.seedScale = 1.0 / Math.max(1, Integer.parseInt(reader.readLine().trim()));
+        this.seedNwz = WordTopicMatrix.create(this.numWords, this.numTopics,
+                jobConf.get("model.storage", WordTopicMatrix.DEFAULT_STORAGE));
+        int numSeedWords = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] cols = line.split(" ");
+            Integer w = wordmap.get(cols[0]);
+            if (w == null) {
+                continue;
+            }
+            for (int i = 0; i < this.numTopics; i++) {
+                int count = Integer.parseInt(cols[i + 1]);
+                this.seedNwz.set(w.intValue(), i, count);
+                this.seedNz[i] += count * this.seedScale;
+            }
+            numSeedWords++;
+        }
+        reader.close();
+        long duration = System.currentTimeMillis() - startTime;
+        LOG.info("Load init model with " + numSeedWords + " known words using " + duration + " milliseconds.");
     }
 
     //输出 id : doc(已初始化，int[] words, int[] topics)
     public void reduce(Text key, Iterator<DocumentWritable> values, OutputCollector<Text, DocumentWritable> outputCollector, Reporter reporter) throws IOException {
         while (values.hasNext()) {
             DocumentWritable doc = (DocumentWritable) values.next();
+            if (this.nzd != null) {
+                Arrays.fill(this.nzd, 0);
+                this.numDocs++;
+            }
 
             for (int i = 0; i < doc.getNumWords(); i++) {
                 int word = doc.words[i];
-                int topic = this.randomProvider.nextInt(this.numTopics);
+                int topic = this.nzd == null
+                        ? this.randomProvider.nextInt(this.numTopics)
+                        : sampleSequential(word);
                 doc.topics[i] = topic;
-                int[] counts = this.nwz[word];
-                if (counts == null) {
-                    counts = new int[this.numTopics];
-                    counts[topic] += 1;
-                    this.nwz[word] = counts;
-                } else {
-                    counts[topic] += 1;
-                }
+                this.nwz.add(word, topic, 1);
             }
             outputCollector.collect(key, doc);
         }
     }
 
+    /**
+     * 根据本reducer已分配的计数（及已导出模型的计数）抽取主题，并更新nzd和nz，nwz由调用方更新
+     */
+    private int sampleSequential(int word) {
+        int[] counts = this.row;
+        this.nwz.getRow(word, counts);
+        int[] seed = this.seedRow;
+        if (seed != null) {
+            this.seedNwz.getRow(word, seed);
+        }
+        //有已导出模型时计数从一开始就有意义，不需要增大beta
+        double b = this.seedNwz == null ? this.beta + (double) this.numTopics / this.numDocs : this.beta;
+        double vbeta = this.numWords * b;
+        double total = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            double nw = b + counts[i];
+            if (seed != null) {
+                nw += seed[i] * this.seedScale;
+            }
+            total += (this.nzd[i] + this.alpha) * nw / (this.nz[i] + this.seedNz[i] + vbeta);
+            this.cumulative[i] = total;
+        }
+        double u = this.randomProvider.nextDouble() * total;
+        int low = 0;
+        int high = this.numTopics - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.cumulative[mid] > u) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        this.nzd[low]++;
+        this.nz[low]++;
+        return low;
+    }
+
     public void close() throws IOException {
-        String partName = "part-" + Math.abs(this.randomProvider.nextInt());
+        //按分区号命名，重试的任务覆盖失败任务留下的文件；作业关闭了reduce的推测执行
+        String partName = this.partition >= 0
+                ? String.format("part-%05d", this.partition)
+                : "part-" + Math.abs(this.randomProvider.nextInt());
         JobConf envConf = new JobConf();
         SequenceFile.Writer writer = SequenceFile.createWriter(
                 FileSystem.get(envConf),
@@ -68,19 +216,16 @@ public class InitModelReducer implements Reducer<Text, DocumentWritable, Text, D
         writer.close();
     }
 
-    private void saveModelParameters(int[][] nwz, SequenceFile.Writer writer) throws IOException {
+    private void saveModelParameters(WordTopicMatrix nwz, SequenceFile.Writer writer) throws IOException {
         IntWritable key = new IntWritable();
         WordInfoWritable value = new WordInfoWritable(this.numTopics);
-        int[] zeros = new int[this.numTopics];
-        Arrays.fill(zeros, 0);
-        for (int i = 0 ; i < nwz.length; i++) {
+        value.setSparse(this.sparseDelta);
+        for (int i = 0 ; i < nwz.getNumWords(); i++) {
             key.set(i);
-            int[] counts = nwz[i];
-            if (counts == null) {
-                counts = zeros;
-            }
-            for (int j = 0; j < this.numTopics; j++) {
-                value.setTopicCount(j, counts[j]);
+            nwz.getRow(i, value.getTopicCounts());
+            //稀疏格式下本reducer没有出现的词不输出
+            if (this.sparseDelta && value.numNonZeros() == 0) {
+                continue;
             }
             //此时输出的每个词的topic分布都是一部分而不是全部
             value.setIsPartial(true);
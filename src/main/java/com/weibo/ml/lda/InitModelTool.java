@@ -3,6 +3,7 @@ package com.weibo.ml.lda;
 import com.weibo.mapred.MapReduceJobConf;
 import com.weibo.misc.AnyDoublePair;
 import com.weibo.misc.Flags;
+import com.weibo.misc.RandomFactory;
 import com.weibo.tool.FolderReader;
 import com.weibo.tool.FolderWriter;
 import com.weibo.tool.GenericTool;
@@ -27,6 +28,49 @@ import java.util.logging.Logger;
 public class InitModelTool implements GenericTool {
 
     private static Logger LOG = Logger.getAnonymousLogger();
+    //随机初始化主题使用的随机数类型及种子，0表示不固定种子
+    private String randomType = RandomFactory.DEFAULT_TYPE;
+    private long randomSeed = 0;
+
+    //初始化方式，见InitModelReducer；sequential和model需要alpha和beta
+    private String initMode = "random";
+    private double alpha = 0.0;
+    private double beta = 0.0;
+    private String initModel = "";
+    private String modelStorage = WordTopicMatrix.DEFAULT_STORAGE;
+    //reducer输出的nwz改变量是否使用稀疏格式
+    private boolean sparseDelta = true;
+    //词编号的顺序，见selectWords；是否把文档中的词按编号排序
+    private String wordOrder = "tfidf";
+    private boolean sortTokens = false;
+
+    public void setModelStorage(String modelStorage) {
+        this.modelStorage = modelStorage;
+    }
+
+    public void setSparseDelta(boolean sparseDelta) {
+        this.sparseDelta = sparseDelta;
+    }
+
+    public void setWordOrder(String wordOrder, boolean sortTokens) {
+        if (!wordOrder.equals("tfidf") && !wordOrder.equals("frequency")) {
+            throw new RuntimeException("Unknown word order: " + wordOrder);
+        }
+        this.wordOrder = wordOrder;
+        this.sortTokens = sortTokens;
+    }
+
+    public void setRandom(String randomType, long randomSeed) {
+        this.randomType = randomType;
+        this.randomSeed = randomSeed;
+    }
+
+    public void setInitOptions(String initMode, double alpha, double beta, String initModel) {
+        this.initMode = initMode;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.initModel = initModel;
+    }
 
     public void run(String[] args) throws Exception {
         Flags flags = new Flags();
@@ -39,7 +83,24 @@ public class InitModelTool implements GenericTool {
         flags.add("min_df");
         flags.add("map_num");
         flags.add("reduce_num");
+        flags.addWithDefaultValue("alpha", "-1", "symmetric hyper-parameter alpha, used by init_mode 'sequential' and 'model'. [default 50.0/k]");
+        flags.addWithDefaultValue("beta", "0.01", "symmetric hyper-parameter beta, used by init_mode 'sequential' and 'model'. [default 0.01]");
+        flags.addWithDefaultValue("init_mode", "random", "'random': uniform random topics. 'sequential': one online Gibbs pass over the counts assigned so far in each reducer. 'model': like 'sequential' plus the counts of init_model. [default 'random']");
+        flags.addWithDefaultValue("init_model", "", "exported text model to seed from when init_mode is 'model', must have num_topics topics.");
+        flags.addWithDefaultValue("random_type", "fast", "'fast': xoroshiro128+, not thread-safe, one stream per task and sampling thread. 'java': java.util.Random. [default 'fast']");
+        flags.addWithDefaultValue("random_seed", "0", "seed from which all task and thread random streams are derived, 0 uses a different seed each run. [default 0]");
+        flags.addWithDefaultValue("word_order", "tfidf", "order of word ids among the selected words. 'tfidf': by TF*IDF. 'frequency': by term frequency, so the most sampled nwz rows are contiguous and ids of frequent words are small. [default 'tfidf']");
+        flags.addWithDefaultValue("sort_tokens", "false", "sort the tokens of each document by word id. [default false]");
+        flags.addWithDefaultValue("sparse_delta", "true", "write the per-reducer nwz counts as varint (topic, count) pairs of touched words only, instead of all K counts of every word. [default true]");
         flags.parseAndCheck(args);
+        setSparseDelta(flags.getBoolean("sparse_delta"));
+        setWordOrder(flags.getString("word_order"), flags.getBoolean("sort_tokens"));
+        setRandom(flags.getString("random_type"), Long.parseLong(flags.getString("random_seed")));
+        double alpha = flags.getDouble("alpha");
+        if (alpha == -1.0) {
+            alpha = 50.0 / flags.getInt("num_topics");
+        }
+        setInitOptions(flags.getString("init_mode"), alpha, flags.getDouble("beta"), flags.getString("init_model"));
 
         Path input = new Path(flags.getString("input"));
         Path tfdf = new Path("tfdf");
@@ -74,6 +135,10 @@ public class InitModelTool implements GenericTool {
      * Note: words started with an underscore '_' are always kept, and they are
      * not count as number of words. This is used for special purpose.
      *
+     * Word ids follow the TF*IDF rank, or with word order 'frequency' the term
+     * frequency of the selected words, most frequent first. Special words always
+     * take the last ids.
+     *
      * @param tfdf SequenceFile of "word":"tf df".
      * @param maxNumWords How many words to keep for training, -1 means all.
      * @param minDf limit number a word must appear in different documents
@@ -123,19 +188,29 @@ public class InitModelTool implements GenericTool {
         if (maxNumWords == -1) {
             maxNumWords = Integer.MAX_VALUE;
         }
-        int numWords = Math.min(maxNumWords, weights.size());
+        List<String> selected = new ArrayList<String>();
+        for (int i = 0; i < Math.min(maxNumWords, weights.size()); i++) {
+            selected.add(weights.get(i).first);
+        }
+        if (this.wordOrder.equals("frequency")) {
+            //高频词编号小且连续，采样时频繁访问的nwz行集中在一起，变长编码的文档和模型也更小
+            final Map<String, WordFreq> freqs = wordCounts;
+            Collections.sort(selected, new Comparator<String>() {
+                public int compare(String o1, String o2) {
+                    int c = Double.compare(freqs.get(o2).tf, freqs.get(o1).tf);
+                    return c != 0 ? c : o1.compareTo(o2);
+                }
+            });
+        }
+        //特殊词汇放在最后
+        selected.addAll(specialKeys);
+        int numWords = selected.size();
         for (int i = 0; i < numWords; i++) {
-            key.set(weights.get(i).first);
+            key.set(selected.get(i));
             //wordlist即wordmap的二进制文件，占用空间小，读取速度快
             value.set(i);
             writer.append(key, value);
         }
-        for (String specialKey : specialKeys) {
-            key.set(specialKey);
-            value.set(numWords);
-            writer.append(key, value);
-            numWords++;
-        }
         writer.close();
         //输出wordmap文件，非sequence文件，可以直接查看，方便调试
         JobConf envConf = new JobConf();
@@ -144,7 +219,7 @@ public class InitModelTool implements GenericTool {
         byte[] numberWriter = (String.valueOf(numWords) + "\n").getBytes();
         out.write(numberWriter, 0, numberWriter.length);
         for (int i = 0; i< numWords; i++) {
-            byte[] toWrite = (weights.get(i).first + "\t" + i + "\n").getBytes();
+            byte[] toWrite = (selected.get(i) + "\t" + i + "\n").getBytes();
             out.write(toWrite, 0, toWrite.length);
         }
         out.close();
@@ -212,6 +287,8 @@ public class InitModelTool implements GenericTool {
         job.setJobName("InitializeModelForLDA");
         job.setMapReduce(InitModelMapper.class, InitModelReducer.class);
         job.setKeyValueClass(Text.class, DocumentWritable.class, Text.class, DocumentWritable.class);
+        //reducer在close中直接把nwz写到固定的文件名，推测执行的另一个尝试会截断已完成的文件
+        job.setReduceSpeculativeExecution(false);
 
         job.setInputOutputPath(input, outputDocs);
 
@@ -219,6 +296,19 @@ public class InitModelTool implements GenericTool {
         job.set("output.nwz", tmpNwz.toString());
         job.setInt("num.topics", numTopics);
         job.setInt("num.words", numWords);
+        job.set("random.type", this.randomType);
+        if (this.randomSeed != 0) {
+            job.setLong("random.seed", this.randomSeed);
+        }
+        job.set("model.storage", this.modelStorage);
+        job.setBoolean("model.sparse.delta", this.sparseDelta);
+        job.setBoolean("sort.tokens", this.sortTokens);
+        job.set("init.mode", this.initMode);
+        job.set("alpha", Double.toString(this.alpha));
+        job.set("beta", Double.toString(this.beta));
+        if (this.initMode.equals("model")) {
+            job.set("init.model", new Path(this.initModel).makeQualified(fs).toString());
+        }
         JobClient.runJob(job);
 
         combineModelParm(tmpNwz, outputNwz, map, reduce);
@@ -232,6 +322,7 @@ public class InitModelTool implements GenericTool {
         job.setInputOutputPath(tmpNwz, outputNwz);
         job.setMapReduce(IdentityMapper.class, CombineModelParamReducer.class);
         job.setKeyValueClass(IntWritable.class, WordInfoWritable.class, IntWritable.class, WordInfoWritable.class);
+        CombineModelParamCombiner.setupJob(job, map);
 
         job.setBoolean("take.mean", false);
         JobClient.runJob(job);
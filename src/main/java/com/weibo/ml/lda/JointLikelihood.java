@@ -0,0 +1,79 @@
+package com.weibo.ml.lda;
+
+import com.weibo.misc.Gamma;
+import com.weibo.misc.LogGammaTable;
+
+/**
+ * 折叠后的联合对数似然 log p(w, z) = log p(w | z) + log p(z)
+ * 1. log p(w | z) = K * (lnG(V * beta) - V * lnG(beta)) + sum_k (sum_w lnG(nwz[w][k] + beta) - lnG(nz[k] + V * beta))
+ * 2. log p(z) = sum_d (lnG(K * alpha) - lnG(L_d + K * alpha) + sum_k (lnG(nzd[k] + alpha) - lnG(alpha)))
+ * 计数较小时 lnG(n + alpha) 和 lnG(n + beta) 查表
+ * Created by yuanye8 on 16/10/18.
+ */
+public class JointLikelihood {
+    private int numTopics;
+    private int numWords;
+    private double alpha;
+    private double beta;
+    private LogGammaTable alphaTable;
+    private LogGammaTable betaTable;
+    //lnG(K * alpha) - K * lnG(alpha) 中与文档无关的部分
+    private double docConstant;
+
+    public JointLikelihood(int numTopics, int numWords, double alpha, double beta) {
+        this.numTopics = numTopics;
+        this.numWords = numWords;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.alphaTable = new LogGammaTable(alpha, 4096);
+        this.betaTable = new LogGammaTable(beta, 65536);
+        this.docConstant = Gamma.logGamma(numTopics * alpha);
+    }
+
+    /**
+     * @return log p(w | z)，nwz 和 nz 为全局计数
+     */
+    public double wordPart(WordTopicMatrix nwz, int[] nz) {
+        return wordPart(nwz, nz, 0, 1);
+    }
+
+    /**
+     * 多个任务分别计算 log p(w | z) 的一部分，各部分之和为 wordPart(nwz, nz)
+     * @param stripe 只累加词号除以 numStripes 余 stripe 的词，0号还累加与词无关的项
+     */
+    public double wordPart(WordTopicMatrix nwz, int[] nz, int stripe, int numStripes) {
+        double lgammaBeta = this.betaTable.get(0);
+        //计数为0的项 lnG(beta) 与 -V * lnG(beta) 抵消，只需累加非零计数
+        double likelihood = 0.0;
+        int[] topics = new int[this.numTopics];
+        int[] counts = new int[this.numTopics];
+        for (int w = stripe; w < nwz.getNumWords(); w += numStripes) {
+            int n = nwz.getNonZeros(w, topics, counts);
+            for (int i = 0; i < n; i++) {
+                likelihood += this.betaTable.get(counts[i]) - lgammaBeta;
+            }
+        }
+        if (stripe == 0) {
+            likelihood += this.numTopics * Gamma.logGamma(this.numWords * this.beta);
+            for (int i = 0; i < this.numTopics; i++) {
+                likelihood -= Gamma.logGamma(nz[i] + this.numWords * this.beta);
+            }
+        }
+        return likelihood;
+    }
+
+    /**
+     * @param nzd 文档的主题分布，已由调用方统计完毕
+     * @return log p(z_d)
+     */
+    public double docPart(DocumentWritable doc, int[] nzd) {
+        double lgammaAlpha = this.alphaTable.get(0);
+        double likelihood = this.docConstant - Gamma.logGamma(doc.getNumWords() + this.numTopics * this.alpha);
+        for (int i = 0; i < this.numTopics; i++) {
+            if (nzd[i] != 0) {
+                likelihood += this.alphaTable.get(nzd[i]) - lgammaAlpha;
+            }
+        }
+        return likelihood;
+    }
+}
@@ -56,6 +56,9 @@ public class LdaModel {
      * 文档被分配到n个主题下的次数，长度K，即numTopics
      */
     protected int[] ndz;
+    /**
+     * 推断接口可能被多个线程共用，使用线程安全的java.util.Random，不用训练中的FastRandom
+     */
     protected Random random = new Random();
 
     public static double LOG_MIN_PROB = -7;
@@ -306,6 +309,13 @@ public class LdaModel {
         return beta;
     }
 
+    /**
+     * 固定推断时的随机种子，相同的模型和文档得到相同的结果
+     */
+    public void setRandomSeed(long seed) {
+        random.setSeed(seed);
+    }
+
     @Deprecated
     public double[] inferenceFast(String[] doc) {
         double[] p = new double[numTopics];
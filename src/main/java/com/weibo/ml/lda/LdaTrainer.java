@@ -1,6 +1,7 @@
 package com.weibo.ml.lda;
 
 import com.weibo.misc.Flags;
+import com.weibo.misc.RandomFactory;
 import com.weibo.tool.FolderReader;
 import com.weibo.tool.GenericTool;
 import org.apache.hadoop.fs.*;
@@ -10,8 +11,10 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.mapred.lib.IdentityMapper;
 
+import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
@@ -25,11 +28,14 @@ import java.util.logging.Logger;
 public class LdaTrainer implements GenericTool {
     Logger LOG = Logger.getAnonymousLogger();
     Long startTime = 0L;
+    //记录最近一次剪枝完成的轮次，见writePrunedIteration
+    private static final String PRUNED = "pruned";
 
     public void run(String[] args) throws Exception {
         this.startTime = System.currentTimeMillis();
         GibbsSamplingTool sampler = new GibbsSamplingTool();
         InitModelTool initializer = new InitModelTool();
+        TopicPruner pruner = new TopicPruner();
 
         Flags flags = new Flags();
         //必须参数
@@ -45,9 +51,40 @@ public class LdaTrainer implements GenericTool {
         flags.addWithDefaultValue("iterations_to_keep", "10", "number of iterations to keep on disk, and used for final model. [default 10]");
         flags.addWithDefaultValue("max_num_words", "100000", "max number of words to use, sorted by TF*IDF. [default 100000]");
         flags.addWithDefaultValue("min_df", "5", "words appear in less than min_df documents will be ignored. [default 5]");
+        flags.addWithDefaultValue("word_order", "tfidf", "order of word ids among the selected words. 'tfidf': by TF*IDF. 'frequency': by term frequency, so the most sampled nwz rows are contiguous and ids of frequent words are small. [default 'tfidf']");
+        flags.addWithDefaultValue("sort_tokens", "false", "sort the tokens of each document by word id. [default false]");
         flags.addWithDefaultValue("input_format", "text", "'sequecefile': Text value of each entry is the doc. 'text': each line is a doc. [default 'text']");
         flags.addWithDefaultValue("map_num", "48", "overall number of map container");
         flags.addWithDefaultValue("reduce_num", "40", "overall number of reduce container");
+        flags.addWithDefaultValue("sampler", "dense", "'dense': compute all K topics. 'sparse': SparseLDA bucketed sampling. 'alias': alias table Metropolis-Hastings. 'ftree': exact F+tree sampling for large K. [default 'dense']");
+        flags.addWithDefaultValue("sampling_mode", "collapsed", "'collapsed': collapsed Gibbs sampling, nwz changes after every token. 'uncollapsed': sample against p(w|z) fixed from the previous nwz, no locks between sampler threads; the sampler flag is ignored. [default 'collapsed']");
+        flags.addWithDefaultValue("alias_rebuild_uses", "0", "rebuild a word's alias table after this many draws, 0 means num_topics. [default 0]");
+        flags.addWithDefaultValue("mh_steps", "2", "Metropolis-Hastings steps per token for the alias sampler. [default 2]");
+        flags.addWithDefaultValue("sampler_threads", "1", "sampling threads inside each reducer, sharing one copy of nwz. [default 1]");
+        flags.addWithDefaultValue("sampling_order", "doc", "'doc': sample documents one by one. 'word': buffer block_docs documents and sample all occurrences of a word together, only with sampler 'dense' or 'alias' in collapsed mode, otherwise falls back to 'doc'. [default 'doc']");
+        flags.addWithDefaultValue("block_docs", "2000", "documents per block for word-major sampling order. [default 2000]");
+        flags.addWithDefaultValue("sample_fraction", "1.0", "fraction of documents sampled in the first iteration, growing linearly to 1.0 at sample_full_iteration. [default 1.0]");
+        flags.addWithDefaultValue("sample_full_iteration", "0", "iteration from which all documents are sampled. [default 0]");
+        flags.addWithDefaultValue("prune_after", "0", "remove dead topics starting from this iteration, 0 disables pruning. [default 0]");
+        flags.addWithDefaultValue("prune_interval", "10", "check for dead topics every this many iterations after prune_after. [default 10]");
+        flags.addWithDefaultValue("prune_min_fraction", "0.0001", "topics holding less than this fraction of all tokens are dead. [default 0.0001]");
+        flags.addWithDefaultValue("sweeps_per_job", "1", "Gibbs sweeps in each sampling job, num_iterations / sweeps_per_job jobs are launched. [default 1]");
+        flags.addWithDefaultValue("cache_docs", "1000000", "documents each reducer keeps in memory when sweeps_per_job > 1, the rest is spilled to local disk. [default 1000000]");
+        flags.addWithDefaultValue("likelihood_doc_fraction", "1.0", "fraction of documents used to estimate log p(w, z), scaled up to the whole corpus. [default 1.0]");
+        flags.addWithDefaultValue("early_stop_tolerance", "0", "stop when relative changes of both log p(w, z) and the changed token fraction stay below this, 0 runs all iterations. [default 0]");
+        flags.addWithDefaultValue("early_stop_patience", "3", "consecutive iterations below early_stop_tolerance before stopping. [default 3]");
+        flags.addWithDefaultValue("init_mode", "random", "'random': uniform random topics. 'sequential': one online Gibbs pass over the counts assigned so far in each reducer. 'model': like 'sequential' plus the counts of init_model. [default 'random']");
+        flags.addWithDefaultValue("init_model", "", "exported text model to seed from when init_mode is 'model', must have num_topics topics.");
+        flags.addWithDefaultValue("random_type", "fast", "'fast': xoroshiro128+, not thread-safe, one stream per task and sampling thread. 'java': java.util.Random. [default 'fast']");
+        flags.addWithDefaultValue("random_seed", "0", "seed from which all task and thread random streams are derived, 0 picks one and logs it. [default 0]");
+        flags.addWithDefaultValue("model_storage", "heap", "storage of the word-topic counts in each reducer. 'heap': one flat array on the Java heap. 'offheap': flat direct memory outside the Java heap, size the container memory accordingly. 'hybrid': sorted (topic, count) pairs for rare words and dense arrays for frequent ones, for models with thousands of topics. [default 'heap']");
+        flags.addWithDefaultValue("sparse_delta", "true", "write the per-reducer nwz changes as varint (topic, count) pairs of touched words only, instead of all K counts of every word. [default true]");
+        flags.addWithDefaultValue("shared_model", "false", "localize nwz once per node into a binary file under model_cache_dir and memory-map it read-only in every reducer; each reducer keeps only its own changes, as sparse rows. [default false]");
+        flags.addWithDefaultValue("model_cache_dir", "/tmp/hadoop-lda-model", "node-local directory, writable by all tasks, for the shared model files. [default /tmp/hadoop-lda-model]");
+        flags.addWithDefaultValue("model_load_threads", "4", "threads each reducer uses to read the nwz part files in parallel. [default 4]");
+        flags.addWithDefaultValue("pipeline", "false", "decode, sample and write documents on separate threads in each reducer so CPU and I/O overlap; applies to one sampler thread in doc order with one sweep per job. [default false]");
+        flags.addWithDefaultValue("pipeline_docs", "256", "documents buffered between the pipeline stages. [default 256]");
+        flags.addWithDefaultValue("compact_interval", "1", "run the job that adds the reducers' nwz changes to the full nwz once every this many iterations; in between nwz.N only lists the last full nwz and the delta directories, which the next iteration sums while loading. Iterations that prune topics always compact. [default 1]");
         flags.parseAndCheck(args);
 
         Path input = new Path(flags.getString("input"));
@@ -64,8 +101,44 @@ public class LdaTrainer implements GenericTool {
         int maxNumWords = flags.getInt("max_num_words");
         int minDf = flags.getInt("min_df");
 
+        double sampleFraction = flags.getDouble("sample_fraction");
+        int sampleFullIteration = flags.getInt("sample_full_iteration");
+        int pruneAfter = flags.getInt("prune_after");
+        int pruneInterval = Math.max(1, flags.getInt("prune_interval"));
+        double pruneMinFraction = flags.getDouble("prune_min_fraction");
+        double earlyStopTolerance = flags.getDouble("early_stop_tolerance");
+        int earlyStopPatience = Math.max(1, flags.getInt("early_stop_patience"));
+
         int map = flags.getInt("map_num");
         int reduce = flags.getInt("reduce_num");
+        sampler.setSamplerType(flags.getString("sampler"));
+        sampler.setSamplingMode(flags.getString("sampling_mode"));
+        sampler.setSamplerThreads(flags.getInt("sampler_threads"));
+        sampler.setSamplingOrder(flags.getString("sampling_order"), flags.getInt("block_docs"));
+        sampler.setAliasOptions(flags.getInt("alias_rebuild_uses"), flags.getInt("mh_steps"));
+        int sweepsPerJob = Math.max(1, flags.getInt("sweeps_per_job"));
+        sampler.setSweepsPerJob(sweepsPerJob, flags.getInt("cache_docs"));
+        sampler.setLikelihoodDocFraction(flags.getDouble("likelihood_doc_fraction"));
+        sampler.setModelStorage(flags.getString("model_storage"));
+        sampler.setSharedModel(flags.getBoolean("shared_model"), flags.getString("model_cache_dir"));
+        sampler.setModelLoadThreads(flags.getInt("model_load_threads"));
+        sampler.setPipeline(flags.getBoolean("pipeline"), flags.getInt("pipeline_docs"));
+        sampler.setCompactInterval(flags.getInt("compact_interval"));
+        initializer.setModelStorage(flags.getString("model_storage"));
+        sampler.setSparseDelta(flags.getBoolean("sparse_delta"));
+        initializer.setSparseDelta(flags.getBoolean("sparse_delta"));
+        initializer.setWordOrder(flags.getString("word_order"), flags.getBoolean("sort_tokens"));
+        //每轮迭代的种子由 random_seed 和迭代序号派生，指定 random_seed 后继续训练与一次跑完的结果相同
+        String randomType = flags.getString("random_type");
+        long randomSeed = Long.parseLong(flags.getString("random_seed"));
+        if (randomSeed == 0) {
+            randomSeed = RandomFactory.randomSeed();
+        }
+        logAndShow("Random seed: " + randomSeed);
+        initializer.setRandom(randomType, randomSeed);
+        initializer.setInitOptions(flags.getString("init_mode"), alpha, beta, flags.getString("init_model"));
+        //每个任务做sweepsPerJob轮采样，docs.N 和 nwz.N 中的N为任务序号
+        int numJobs = (numIterations + sweepsPerJob - 1) / sweepsPerJob;
 
         JobConf conf = new JobConf();
 
@@ -83,6 +156,13 @@ public class LdaTrainer implements GenericTool {
             out.writeDouble(beta);
             out.writeInt(numTopics);
             out.close();
+        } else {
+            //剪枝后parameters中的主题数小于num_topics，继续训练时以parameters为准
+            FSDataInputStream ins = fs.open(parameters);
+            ins.readDouble();
+            ins.readDouble();
+            numTopics = ins.readInt();
+            ins.close();
         }
 
         // Create likelihood file.
@@ -137,7 +217,11 @@ public class LdaTrainer implements GenericTool {
                 latest = n;
             }
         }
-        if (latest >= 0) {
+        if (latest >= 0 && latest == readPrunedIteration(fs, workingDir)) {
+            //剪枝完成后更早的结果已被删除，最新一次是完整的且是唯一可用的结果，从它继续
+            logAndShow("Found previous training data at iteration #" + latest
+                    + ", pruned and complete, start with it.");
+        } else if (latest >= 0) {
             logAndShow("Found previous training data at iteration #" + latest + ".");
             Path latestDocs = new Path(workingDir, "docs." + formatter.format(latest));
             Path latestNwz = new Path(workingDir, "nwz." + formatter.format(latest));
@@ -182,36 +266,99 @@ public class LdaTrainer implements GenericTool {
             numWords = loadNumWords(words);
         }
         //3. 开始迭代
-        for (int i = latest; i < numIterations; i++) {
-            logAndShow("Begin iteration #" + (i + 1));
+        //log p(w, z) 是进入任务时的状态，比主题改变比例晚一轮；两者的相对变化连续 earlyStopPatience 轮都小于阈值时停止
+        int lastJob = numJobs;
+        int stableJobs = 0;
+        boolean prunedBefore = false;
+        double previousLogLikelihood = 0.0;
+        double previousChangedFraction = 0.0;
+        for (int i = latest; i < numJobs; i++) {
+            logAndShow("Begin iteration #" + (i + 1) + ", " + sweepsPerJob + " sweeps per job");
             Path previousDocs = new Path(workingDir, "docs." + formatter.format(i));
             Path previousNwz = new Path(workingDir, "nwz." + formatter.format(i));
             Path targetDocs = new Path(workingDir, "docs." + formatter.format(i + 1));
             Path targetNwz = new Path(workingDir, "nwz." + formatter.format(i + 1));
+            //前期只采样部分文档，比例按采样轮数（不是任务序号）线性增长到1
+            int iteration = i * sweepsPerJob;
+            double fraction = 1.0;
+            if (iteration < sampleFullIteration) {
+                fraction = sampleFraction + (1.0 - sampleFraction) * iteration / sampleFullIteration;
+                logAndShow("#" + (i + 1) + " Sample fraction of documents: " + fraction);
+            }
+            sampler.setDocFraction(fraction, i);
+            sampler.setRandom(randomType, RandomFactory.deriveSeed(randomSeed, i));
             double likelihood = sampler.sampling(
                     previousDocs, targetDocs,
                     previousNwz, targetNwz,
                     alpha, beta, numTopics, numWords,
                     map, reduce);
+            double logLikelihood = sampler.getLogLikelihood();
+            double changedFraction = sampler.getChangedFraction();
             logAndShow("#" + (i + 1) + " Likelihood: " + likelihood);
+            logAndShow("#" + i + " Log p(w, z): " + logLikelihood);
+            logAndShow("#" + (i + 1) + " Changed tokens: " + changedFraction);
             likelihoodWriter = new OutputStreamWriter(
                     fs.create(new Path(workingDir, "likelihood"), true),
                     "UTF-8");
             likelihoodWriter.append(Double.toString(likelihood));
+            likelihoodWriter.append("\t");
+            likelihoodWriter.append(Double.toString(logLikelihood));
+            likelihoodWriter.append("\t");
+            likelihoodWriter.append(Double.toString(changedFraction));
             likelihoodWriter.append("\n");
             likelihoodWriter.close();
 
-            //只保留最近n次
+            boolean pruned = false;
+            //本任务做完第 iteration+1 到 iteration+sweepsPerJob 轮采样，其中有一轮到了剪枝点就剪枝
+            if (isPruneDue(iteration + 1, iteration + sweepsPerJob, pruneAfter, pruneInterval)) {
+                //剪枝按词逐行改写nwz，需要完整的nwz
+                sampler.compact(targetNwz, map, reduce);
+                int newTopics = pruner.prune(workingDir, targetDocs, targetNwz,
+                        numTopics, numWords, pruneMinFraction, map, reduce);
+                if (newTopics < numTopics) {
+                    logAndShow("#" + (i + 1) + " Pruned topics: " + numTopics + " -> " + newTopics);
+                    numTopics = newTopics;
+                    pruned = true;
+                    //先记下剪枝完成的轮次，重启时不把它当作未完成的结果删除
+                    writePrunedIteration(fs, workingDir, i + 1);
+                    //之前保留的结果主题数不同，不能再用于导出模型
+                    for (int j = i; j >= 0 && j > i - iterationToKeep; j--) {
+                        fs.delete(new Path(workingDir, "docs." + formatter.format(j)));
+                        fs.delete(new Path(workingDir, "nwz." + formatter.format(j)));
+                    }
+                }
+            }
+
+            //只保留最近n次；仍被未合并的nwz引用的完整nwz及delta暂时保留，见ModelChain
             if (i + 1 - iterationToKeep >= 0) {
                 Path oldDocs = new Path(workingDir, "docs." + formatter.format(i + 1 - iterationToKeep));
                 fs.delete(oldDocs);
-                Path oldNwz = new Path(workingDir, "nwz." + formatter.format(i + 1 - iterationToKeep));
-                fs.delete(oldNwz);
+                ModelChain.removeUnreferenced(fs, workingDir, i + 2 - iterationToKeep);
+            }
+
+            //剪枝后主题数改变，与下一轮的似然不可比，重新开始计数
+            if (pruned) {
+                stableJobs = 0;
+            } else if (earlyStopTolerance > 0 && i > latest && !prunedBefore) {
+                if (Math.abs((logLikelihood - previousLogLikelihood) / previousLogLikelihood) < earlyStopTolerance
+                        && Math.abs(changedFraction - previousChangedFraction) <= earlyStopTolerance * previousChangedFraction) {
+                    stableJobs++;
+                } else {
+                    stableJobs = 0;
+                }
+            }
+            prunedBefore = pruned;
+            previousLogLikelihood = logLikelihood;
+            previousChangedFraction = changedFraction;
+            if (stableJobs >= earlyStopPatience) {
+                lastJob = i + 1;
+                logAndShow("Converged after iteration #" + lastJob + ".");
+                break;
             }
         }
 
         //output tassign matrix to text file
-        Path targetDocs = new Path(workingDir, "docs." + formatter.format(numIterations));
+        Path targetDocs = new Path(workingDir, "docs." + formatter.format(lastJob));
         combineDocs(targetDocs);
 
         likelihoodWriter.close();
@@ -265,6 +412,46 @@ public class LdaTrainer implements GenericTool {
         runningJob.waitForCompletion();
     }
 
+    /**
+     * @return 第first到last轮（含）中是否有剪枝点：pruneAfter、pruneAfter+pruneInterval、...
+     */
+    private boolean isPruneDue(int first, int last, int pruneAfter, int pruneInterval) {
+        if (pruneAfter <= 0 || last < pruneAfter) {
+            return false;
+        }
+        int from = Math.max(first, pruneAfter);
+        //不小于from的第一个剪枝点
+        int next = pruneAfter + (from - pruneAfter + pruneInterval - 1) / pruneInterval * pruneInterval;
+        return next <= last;
+    }
+
+    /**
+     * 剪枝完成后 docs.N 和 nwz.N 是唯一保留的结果，把N写入工作目录中的 PRUNED 文件
+     */
+    private void writePrunedIteration(FileSystem fs, Path workingDir, int iteration) throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(fs.create(new Path(workingDir, PRUNED), true), "UTF-8");
+        writer.append(Integer.toString(iteration));
+        writer.append("\n");
+        writer.close();
+    }
+
+    /**
+     * @return 最近一次剪枝完成的轮次，没有剪枝过时返回-1
+     */
+    private int readPrunedIteration(FileSystem fs, Path workingDir) throws IOException {
+        Path file = new Path(workingDir, PRUNED);
+        if (!fs.exists(file)) {
+            return -1;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            return line == null ? -1 : Integer.parseInt(line.trim());
+        } finally {
+            reader.close();
+        }
+    }
+
     private int loadNumWords(Path words) throws IOException {
         FolderReader reader = new FolderReader(words);
         int numWords = 0;
@@ -0,0 +1,298 @@
+package com.weibo.ml.lda;
+
+import com.weibo.tool.FolderReader;
+import org.apache.hadoop.io.IntWritable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 只读映射本地模型文件的词-主题计数矩阵，同一节点上的多个任务共享操作系统中的同一份页缓存
+ * 1. 文件中的计数只读，任务自身对nwz的修改记在私有的 overlay 中，get 返回两者之和；
+ *    overlay 为 HybridWordTopicMatrix，只为改变过的词分配行
+ * 2. 文件格式（本机字节序，只在本节点使用）：
+ *    头部 [MAGIC, V, K, 0]，nz[K]，每个词的 (long 数据偏移, int 非零主题数)，之后是每个词的一行数据；
+ *    非零主题数超过 HybridWordTopicMatrix.denseThreshold 的行存K个计数，否则按主题号升序存 (topic, count) 对，
+ *    全为0的行不占空间
+ * 3. 单个映射不能超过2G，数据按 CHUNK_BYTES 分块映射，写文件时保证一行不跨块
+ * Created by yuanye8 on 16/10/18.
+ */
+public class MappedWordTopicMatrix extends WordTopicMatrix {
+    private static final int MAGIC = 0x4C444131;
+    private static final int HEADER_BYTES = 16;
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_BYTES = 1L << CHUNK_BITS;
+    private static final int WRITE_BUFFER_BYTES = 4 << 20;
+
+    private final int[] topicCounts;
+    //每个词的数据在数据区中的字节偏移及非零主题数
+    private final long[] offsets;
+    private final int[] nonZeros;
+    private final IntBuffer[] chunks;
+    private final int denseThreshold;
+    private final WordTopicMatrix overlay;
+
+    public MappedWordTopicMatrix(File file, int numWords, int numTopics) throws IOException {
+        super(numWords, numTopics);
+        this.overlay = new HybridWordTopicMatrix(numWords, numTopics);
+        this.denseThreshold = HybridWordTopicMatrix.denseThreshold(this.numTopics);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long dataStart = dataStart(this.numWords, this.numTopics);
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataStart).order(ByteOrder.nativeOrder());
+            if (head.getInt() != MAGIC || head.getInt() != this.numWords || head.getInt() != this.numTopics) {
+                throw new IOException("Model file " + file + " does not match V=" + this.numWords + " K=" + this.numTopics);
+            }
+            head.getInt();
+            this.topicCounts = new int[this.numTopics];
+            for (int i = 0; i < this.numTopics; i++) {
+                this.topicCounts[i] = head.getInt();
+            }
+            this.offsets = new long[this.numWords];
+            this.nonZeros = new int[this.numWords];
+            for (int w = 0; w < this.numWords; w++) {
+                this.offsets[w] = head.getLong();
+                this.nonZeros[w] = head.getInt();
+            }
+            long dataBytes = channel.size() - dataStart;
+            int numChunks = (int) ((dataBytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            this.chunks = new IntBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                long start = dataStart + c * CHUNK_BYTES;
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(CHUNK_BYTES, channel.size() - start));
+                this.chunks[c] = chunk.order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } finally {
+            //映射建立后关闭文件不影响访问
+            raf.close();
+        }
+    }
+
+    private static long dataStart(int numWords, int numTopics) {
+        return HEADER_BYTES + 4L * numTopics + 12L * numWords;
+    }
+
+    /**
+     * 把 SequenceFile 格式的nwz（WordInfoWritable）转成本类的文件格式
+     */
+    public static void write(FolderReader reader, File file, int numWords, int numTopics) throws IOException {
+        int denseThreshold = HybridWordTopicMatrix.denseThreshold(numTopics);
+        long[] offsets = new long[numWords];
+        int[] nonZeros = new int[numWords];
+        int[] nz = new int[numTopics];
+        long dataStart = dataStart(numWords, numTopics);
+        IntWritable key = new IntWritable();
+        WordInfoWritable value = new WordInfoWritable(numTopics);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.nativeOrder());
+            //数据区中已写出的字节数
+            long position = 0;
+            long flushed = 0;
+            while (reader.next(key, value)) {
+                int word = key.get();
+                int[] counts = value.getTopicCounts();
+                int n = 0;
+                for (int i = 0; i < numTopics; i++) {
+                    if (counts[i] != 0) {
+                        nz[i] += counts[i];
+                        n++;
+                    }
+                }
+                nonZeros[word] = n;
+                if (n == 0) {
+                    continue;
+                }
+                int rowBytes = n > denseThreshold ? 4 * numTopics : 8 * n;
+                if ((position & (CHUNK_BYTES - 1)) + rowBytes > CHUNK_BYTES) {
+                    flushed = flush(channel, buffer, dataStart + flushed) - dataStart;
+                    position = (position + CHUNK_BYTES - 1) & ~(CHUNK_BYTES - 1);
+                    flushed = position;
+                }
+                if (buffer.remaining() < rowBytes) {
+                    flushed = flush(channel, buffer, dataStart + flushed) - dataStart;
+                }
+                offsets[word] = position;
+                if (n > denseThreshold) {
+                    for (int i = 0; i < numTopics; i++) {
+                        buffer.putInt(counts[i]);
+                    }
+                } else {
+                    for (int i = 0; i < numTopics; i++) {
+                        if (counts[i] != 0) {
+                            buffer.putInt(i);
+                            buffer.putInt(counts[i]);
+                        }
+                    }
+                }
+                position += rowBytes;
+            }
+            flush(channel, buffer, dataStart + flushed);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(numWords);
+            buffer.putInt(numTopics);
+            buffer.putInt(0);
+            long headPosition = 0;
+            for (int i = 0; i < numTopics; i++) {
+                if (buffer.remaining() < 4) {
+                    headPosition = flush(channel, buffer, headPosition);
+                }
+                buffer.putInt(nz[i]);
+            }
+            for (int w = 0; w < numWords; w++) {
+                if (buffer.remaining() < 12) {
+                    headPosition = flush(channel, buffer, headPosition);
+                }
+                buffer.putLong(offsets[w]);
+                buffer.putInt(nonZeros[w]);
+            }
+            flush(channel, buffer, headPosition);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 把buffer中的数据写到文件的position处
+     * @return 写完后的文件位置
+     */
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    /**
+     * 把文件中各主题的总计数复制到nz中
+     */
+    public void getTopicCounts(int[] nz) {
+        System.arraycopy(this.topicCounts, 0, nz, 0, this.numTopics);
+    }
+
+    /**
+     * @return 记录修改的矩阵，只含文件之外的计数
+     */
+    public WordTopicMatrix getOverlay() {
+        return this.overlay;
+    }
+
+    private int baseGet(int word, int topic) {
+        int n = this.nonZeros[word];
+        if (n == 0) {
+            return 0;
+        }
+        long offset = this.offsets[word];
+        IntBuffer chunk = this.chunks[(int) (offset >>> CHUNK_BITS)];
+        int index = (int) (offset & (CHUNK_BYTES - 1)) >>> 2;
+        if (n > this.denseThreshold) {
+            return chunk.get(index + topic);
+        }
+        int low = 0;
+        int high = n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int t = chunk.get(index + 2 * mid);
+            if (t < topic) {
+                low = mid + 1;
+            } else if (t > topic) {
+                high = mid - 1;
+            } else {
+                return chunk.get(index + 2 * mid + 1);
+            }
+        }
+        return 0;
+    }
+
+    private void baseAddToRow(int word, int[] row) {
+        int n = this.nonZeros[word];
+        if (n == 0) {
+            return;
+        }
+        long offset = this.offsets[word];
+        IntBuffer chunk = this.chunks[(int) (offset >>> CHUNK_BITS)];
+        int index = (int) (offset & (CHUNK_BYTES - 1)) >>> 2;
+        if (n > this.denseThreshold) {
+            for (int i = 0; i < this.numTopics; i++) {
+                row[i] += chunk.get(index + i);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                row[chunk.get(index + 2 * i)] += chunk.get(index + 2 * i + 1);
+            }
+        }
+    }
+
+    @Override
+    public int get(int word, int topic) {
+        return baseGet(word, topic) + this.overlay.get(word, topic);
+    }
+
+    @Override
+    public void set(int word, int topic, int value) {
+        this.overlay.set(word, topic, value - baseGet(word, topic));
+    }
+
+    @Override
+    public int add(int word, int topic, int delta) {
+        return baseGet(word, topic) + this.overlay.add(word, topic, delta);
+    }
+
+    @Override
+    public void getRow(int word, int[] row) {
+        this.overlay.getRow(word, row);
+        baseAddToRow(word, row);
+    }
+
+    @Override
+    public void addToRow(int word, int[] row) {
+        this.overlay.addToRow(word, row);
+        baseAddToRow(word, row);
+    }
+
+    @Override
+    public void setRow(int word, int[] row) {
+        int[] delta = new int[this.numTopics];
+        baseAddToRow(word, delta);
+        for (int i = 0; i < this.numTopics; i++) {
+            delta[i] = row[i] - delta[i];
+        }
+        this.overlay.setRow(word, delta);
+    }
+
+    @Override
+    public int getNonZeros(int word, int[] topics, int[] counts) {
+        int[] row = new int[this.numTopics];
+        getRow(word, row);
+        int n = 0;
+        for (int i = 0; i < this.numTopics; i++) {
+            if (row[i] != 0) {
+                topics[n] = i;
+                counts[n] = row[i];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 只清除本任务的修改，文件中的计数不变
+     */
+    @Override
+    public void clear() {
+        this.overlay.clear();
+    }
+}
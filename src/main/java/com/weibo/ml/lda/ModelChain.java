@@ -0,0 +1,174 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * 未合并的nwz：一份完整的nwz加上之后各轮采样输出的 delta_nwz，读取时相加即为这一轮的nwz
+ * 1. 推迟 combine 时 nwz.N 目录中只有清单文件 _chain，第一行为完整nwz的路径，之后每行一个delta目录
+ * 2. delta目录为 nwz.N 同一目录下的 delta.N，内容与 combine 作业的输入相同（isPartial为true）
+ * 3. 不是清单的nwz目录读作只有完整nwz、没有delta，读取方不必区分
+ * 4. 完整的nwz及delta可能被之后多轮的清单引用，删除旧迭代时由 removeUnreferenced 判断
+ * Created by yuanye8 on 16/10/18.
+ */
+public class ModelChain {
+    private static Logger LOG = Logger.getLogger(ModelChain.class.getName());
+    public static final String MANIFEST = "_chain";
+    private static final Pattern NWZ_NAME = Pattern.compile("nwz\\.\\d+");
+    private static final Pattern DELTA_NAME = Pattern.compile("delta\\.\\d+");
+
+    private final Path base;
+    private final List<Path> deltas;
+
+    public ModelChain(Path base, List<Path> deltas) {
+        this.base = base;
+        this.deltas = deltas;
+    }
+
+    public Path getBase() {
+        return this.base;
+    }
+
+    public List<Path> getDeltas() {
+        return this.deltas;
+    }
+
+    /**
+     * @return 在末尾加上delta后的新清单
+     */
+    public ModelChain append(Path delta) {
+        List<Path> list = new ArrayList<Path>(this.deltas);
+        list.add(delta);
+        return new ModelChain(this.base, list);
+    }
+
+    public static boolean isChain(FileSystem fs, Path nwz) throws IOException {
+        return fs.exists(new Path(nwz, MANIFEST));
+    }
+
+    /**
+     * 读取nwz目录，完整的nwz返回没有delta的清单
+     */
+    public static ModelChain read(FileSystem fs, Path nwz) throws IOException {
+        List<Path> deltas = new ArrayList<Path>();
+        if (!isChain(fs, nwz)) {
+            return new ModelChain(nwz, deltas);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(nwz, MANIFEST)), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty model chain " + nwz);
+            }
+            Path base = new Path(line);
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    deltas.add(new Path(line));
+                }
+            }
+            return new ModelChain(base, deltas);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 把清单写到nwz目录中，nwz已存在时先删除
+     */
+    public void write(FileSystem fs, Path nwz) throws IOException {
+        if (fs.exists(nwz)) {
+            fs.delete(nwz, true);
+        }
+        fs.mkdirs(nwz);
+        FSDataOutputStream out = fs.create(new Path(nwz, MANIFEST), true);
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write(fs.makeQualified(this.base).toString());
+        writer.write("\n");
+        for (Path delta : this.deltas) {
+            writer.write(fs.makeQualified(delta).toString());
+            writer.write("\n");
+        }
+        writer.close();
+    }
+
+    /**
+     * @return nwz.N 对应的delta目录 delta.N
+     */
+    public static Path deltaPath(Path nwz) {
+        return sibling(nwz, "delta.");
+    }
+
+    /**
+     * @return 合并 nwz.N 时的临时输出目录 compact.N
+     */
+    public static Path compactPath(Path nwz) {
+        return sibling(nwz, "compact.");
+    }
+
+    //名字中不含 nwz.，导出模型时不会被当作nwz读取
+    private static Path sibling(Path nwz, String prefix) {
+        String name = nwz.getName();
+        if (name.startsWith("nwz.")) {
+            name = name.substring("nwz.".length());
+        }
+        return new Path(nwz.getParent(), prefix + name);
+    }
+
+    /**
+     * 删除workingDir中序号小于oldest的 nwz.N，以及不再被任何清单引用的delta.N；
+     * 被序号不小于oldest的清单引用的完整nwz保留到不再被引用时
+     */
+    public static void removeUnreferenced(FileSystem fs, Path workingDir, int oldest) throws IOException {
+        FileStatus[] files = fs.listStatus(workingDir);
+        List<Path> oldModels = new ArrayList<Path>();
+        Set<String> referenced = new HashSet<String>();
+        for (FileStatus f : files) {
+            String name = f.getPath().getName();
+            if (!NWZ_NAME.matcher(name).matches()) {
+                continue;
+            }
+            boolean chain = isChain(fs, f.getPath());
+            if (Integer.parseInt(name.substring("nwz.".length())) >= oldest) {
+                if (chain) {
+                    ModelChain c = read(fs, f.getPath());
+                    referenced.add(fs.makeQualified(c.getBase()).toString());
+                    for (Path delta : c.getDeltas()) {
+                        referenced.add(fs.makeQualified(delta).toString());
+                    }
+                }
+            } else if (chain) {
+                //旧的清单只是一个小文件，直接删除
+                fs.delete(f.getPath(), true);
+            } else {
+                oldModels.add(f.getPath());
+            }
+        }
+        for (Path p : oldModels) {
+            if (!referenced.contains(fs.makeQualified(p).toString())) {
+                fs.delete(p, true);
+                LOG.info("Remove model " + p.getName());
+            }
+        }
+        for (FileStatus f : files) {
+            Path p = f.getPath();
+            if (DELTA_NAME.matcher(p.getName()).matches() && !referenced.contains(fs.makeQualified(p).toString())) {
+                fs.delete(p, true);
+                LOG.info("Remove unreferenced delta " + p.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.weibo.ml.lda;
+
+/**
+ * 稀疏主题索引：记录每一行（如nwz中的每个词）计数不为0的主题
+ * 大部分词只在少数主题下出现，遍历非零主题比遍历全部K个主题快得多
+ * Created by yuanye8 on 16/10/18.
+ */
+public class NonZeroTopicIndex {
+    private int[][] topics;
+    private int[] size;
+
+    public NonZeroTopicIndex(int numRows) {
+        this.topics = new int[numRows][];
+        this.size = new int[numRows];
+    }
+
+    /**
+     * 根据一行完整的计数建立索引
+     */
+    public void build(int row, int[] counts) {
+        int n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                n++;
+            }
+        }
+        this.topics[row] = new int[Math.max(n, 4)];
+        this.size[row] = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                this.topics[row][this.size[row]++] = i;
+            }
+        }
+    }
+
+    /**
+     * 根据一行的非零主题建立索引
+     */
+    public void build(int row, int[] nonZeroTopics, int n) {
+        this.topics[row] = new int[Math.max(n, 4)];
+        System.arraycopy(nonZeroTopics, 0, this.topics[row], 0, n);
+        this.size[row] = n;
+    }
+
+    public int[] topics(int row) {
+        return this.topics[row];
+    }
+
+    public int size(int row) {
+        return this.size[row];
+    }
+
+    /**
+     * 计数由0变为非0时调用
+     */
+    public void add(int row, int topic) {
+        int[] list = this.topics[row];
+        if (list == null) {
+            list = new int[4];
+            this.topics[row] = list;
+        } else if (this.size[row] == list.length) {
+            int[] grown = new int[list.length * 2];
+            System.arraycopy(list, 0, grown, 0, list.length);
+            list = grown;
+            this.topics[row] = list;
+        }
+        list[this.size[row]++] = topic;
+    }
+
+    /**
+     * 计数由非0变为0时调用，用末尾元素填补空位
+     */
+    public void remove(int row, int topic) {
+        int[] list = this.topics[row];
+        int n = this.size[row];
+        for (int i = 0; i < n; i++) {
+            if (list[i] == topic) {
+                list[i] = list[n - 1];
+                this.size[row] = n - 1;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.weibo.ml.lda;
+
+import com.weibo.tool.FolderReader;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * 并行读取nwz（IntWritable -> WordInfoWritable）的各个part文件
+ * 1. FolderReader逐个文件顺序读取，模型很大时读取时间受单个HDFS流的吞吐限制；这里每个线程读取一个part文件
+ * 2. 每个词只出现在一个part文件中，各线程写入矩阵的不同行，不需要加锁；nz由各线程分别累加后合并
+ * 3. 未合并的nwz（见ModelChain）先读完整的nwz，再把各delta累加上去；同一个词在多个delta文件中出现，累加时持有 lock(word)
+ * Created by yuanye8 on 16/10/18.
+ */
+public class ParallelModelLoader {
+    private static Logger LOG = Logger.getLogger(ParallelModelLoader.class.getName());
+
+    /**
+     * 读取modelPath下的nwz写入nwz，并把各主题的总计数写入nz
+     */
+    public static void load(JobConf conf, Path modelPath, WordTopicMatrix nwz, int[] nz, int numThreads)
+            throws IOException {
+        FileSystem fs = modelPath.getFileSystem(conf);
+        ModelChain chain = ModelChain.read(fs, modelPath);
+        List<FileStatus> parts = new ArrayList<FileStatus>();
+        for (FileStatus part : FolderReader.listParts(chain.getBase(), fs)) {
+            parts.add(part);
+        }
+        run(conf, chain.getBase(), parts, nwz, nz, numThreads, false, 1);
+        addDeltas(conf, chain.getDeltas(), nwz, nz, numThreads);
+    }
+
+    /**
+     * 把各delta目录中的计数累加到nwz和nz
+     */
+    public static void addDeltas(JobConf conf, List<Path> deltas, WordTopicMatrix nwz, int[] nz, int numThreads)
+            throws IOException {
+        addDeltas(conf, deltas, nwz, nz, numThreads, 1);
+    }
+
+    /**
+     * @param sign 为-1时从nwz和nz中减去各delta
+     */
+    public static void addDeltas(JobConf conf, List<Path> deltas, WordTopicMatrix nwz, int[] nz, int numThreads,
+                                 int sign) throws IOException {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        List<FileStatus> parts = new ArrayList<FileStatus>();
+        for (Path delta : deltas) {
+            for (FileStatus part : FolderReader.listParts(delta, delta.getFileSystem(conf))) {
+                parts.add(part);
+            }
+        }
+        run(conf, deltas.get(0).getParent(), parts, nwz, nz, numThreads, true, sign);
+    }
+
+    /**
+     * @param add 为true时乘以sign后累加到nwz（delta），否则整行写入（完整的nwz）
+     */
+    private static void run(JobConf conf, Path modelPath, List<FileStatus> parts, final WordTopicMatrix nwz,
+                            int[] nz, int numThreads, final boolean add, final int sign) throws IOException {
+        long startTime = System.currentTimeMillis();
+        final FileSystem fs = modelPath.getFileSystem(conf);
+        final JobConf jobConf = conf;
+        final int numTopics = nwz.getNumTopics();
+        long bytes = 0;
+        for (FileStatus part : parts) {
+            bytes += part.getLen();
+        }
+        numThreads = Math.max(1, Math.min(numThreads, parts.size()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+        final long[] rows = new long[parts.size()];
+        for (int p = 0; p < parts.size(); p++) {
+            final Path partPath = parts.get(p).getPath();
+            final int index = p;
+            results.add(executor.submit(new Callable<int[]>() {
+                public int[] call() throws IOException {
+                    int[] partNz = new int[numTopics];
+                    int[] topics = new int[numTopics];
+                    int[] nonZeros = new int[numTopics];
+                    IntWritable key = new IntWritable();
+                    WordInfoWritable value = new WordInfoWritable(numTopics);
+                    SequenceFile.Reader reader = new SequenceFile.Reader(fs, partPath, jobConf);
+                    try {
+                        while (reader.next(key, value)) {
+                            if (add) {
+                                int word = key.get();
+                                int n = value.getNonZeros(topics, nonZeros);
+                                synchronized (nwz.lock(word)) {
+                                    for (int i = 0; i < n; i++) {
+                                        nwz.add(word, topics[i], sign * nonZeros[i]);
+                                        partNz[topics[i]] += sign * nonZeros[i];
+                                    }
+                                }
+                            } else {
+                                int[] counts = value.getTopicCounts();
+                                for (int i = 0; i < numTopics; i++) {
+                                    partNz[i] += counts[i];
+                                }
+                                nwz.setRow(key.get(), counts);
+                            }
+                            rows[index]++;
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    return partNz;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long numRows = 0;
+        try {
+            for (int p = 0; p < parts.size(); p++) {
+                int[] partNz = results.get(p).get();
+                for (int i = 0; i < numTopics; i++) {
+                    nz[i] += partNz[i];
+                }
+                numRows += rows[p];
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new IOException("Interrupted while loading " + modelPath, e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new IOException("Failed to load " + modelPath, e.getCause());
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        LOG.info(String.format("%s %d rows, %.1f MB from %d parts with %d threads using %d milliseconds, %.1f MB/s.",
+                add ? "Add" : "Load", numRows, bytes / 1048576.0, parts.size(), numThreads, duration,
+                bytes / 1048576.0 * 1000 / duration));
+    }
+}
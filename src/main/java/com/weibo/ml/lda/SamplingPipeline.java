@@ -0,0 +1,193 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * reducer内部的流水线采样：读入、采样、输出分别在三个线程上进行，CPU与IO交替时互相重叠
+ * 1. 读入：reduce线程由Hadoop反序列化文档，复制到环形缓冲区的空闲槽位中，交给采样线程
+ * 2. 采样：单个采样线程按到达顺序采样，与单线程采样的结果相同
+ * 3. 输出：输出线程序列化并输出文档，之后把槽位放回缓冲区；不需要采样的文档也经由输出线程，
+ *    OutputCollector 只在这一个线程上调用
+ * 4. 采样结束后 reducer 即可输出 delta_nwz，与输出线程输出剩余文档同时进行
+ * Created by yuanye8 on 16/10/18.
+ */
+public class SamplingPipeline {
+    public static Logger LOG = Logger.getAnonymousLogger();
+    private static final Slot END = new Slot();
+
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> toSample;
+    private final BlockingQueue<Slot> toWrite;
+    private final TopicSampler sampler;
+    private final int[] nzd;
+    private final WordTopicMatrix deltaNwz;
+    private final Thread samplerThread;
+    private final Thread writerThread;
+    private volatile Throwable error = null;
+    private volatile OutputCollector<Text, DocumentWritable> outputCollector = null;
+    //按文档截断后累加，与逐篇计入 LIKELIHOOD 计数器的结果相同；由reduce线程在结束时计入
+    private long likelihood = 0;
+
+    /**
+     * @param capacity 环形缓冲区的文档数，即读入可以领先输出的文档数
+     */
+    public SamplingPipeline(TopicSampler sampler, int[] nzd, WordTopicMatrix deltaNwz, int capacity) {
+        this.sampler = sampler;
+        this.nzd = nzd;
+        this.deltaNwz = deltaNwz;
+        this.free = new ArrayBlockingQueue<Slot>(capacity);
+        this.toSample = new ArrayBlockingQueue<Slot>(capacity + 1);
+        this.toWrite = new ArrayBlockingQueue<Slot>(capacity + 1);
+        for (int i = 0; i < capacity; i++) {
+            this.free.add(new Slot());
+        }
+        this.samplerThread = new Thread(new Runnable() {
+            public void run() {
+                runSampler();
+            }
+        }, "gibbs-pipeline-sampler");
+        this.writerThread = new Thread(new Runnable() {
+            public void run() {
+                runWriter();
+            }
+        }, "gibbs-pipeline-writer");
+        this.samplerThread.setDaemon(true);
+        this.writerThread.setDaemon(true);
+        this.samplerThread.start();
+        this.writerThread.start();
+        LOG.info("Start sampling pipeline with " + capacity + " document slots.");
+    }
+
+    /**
+     * 复制文档到空闲槽位并交给采样线程，Hadoop会复用key和value对象
+     * @param sample 为false时不采样，原样输出
+     */
+    public void submit(Text key, DocumentWritable doc, boolean sample,
+                       OutputCollector<Text, DocumentWritable> outputCollector) throws IOException {
+        this.outputCollector = outputCollector;
+        Slot slot = take(this.free);
+        slot.key.set(key);
+        slot.doc.set(doc);
+        slot.sample = sample;
+        put(this.toSample, slot);
+    }
+
+    /**
+     * 等待所有文档采样完毕，之后可以读取deltaNwz和采样器的统计
+     */
+    public void finishSampling() throws IOException {
+        put(this.toSample, END);
+        join(this.samplerThread);
+    }
+
+    /**
+     * 等待所有文档输出完毕，并把采样的 LIKELIHOOD 计入计数器
+     */
+    public void finishOutput(Reporter reporter) throws IOException {
+        join(this.writerThread);
+        if (reporter != null) {
+            reporter.incrCounter(GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD, this.likelihood);
+        }
+    }
+
+    //三个线程都通过 take/put 访问队列，任一线程出错后其余线程不会一直阻塞
+    private void runSampler() {
+        try {
+            while (true) {
+                Slot slot = take(this.toSample);
+                if (slot != END && slot.sample) {
+                    double docLikelihood = GibbsSamplingReducer.sampleDocument(this.sampler, slot.doc, this.nzd, this.deltaNwz);
+                    slot.likelihood = (long) (docLikelihood * GibbsSamplingTool.RESOLUTION);
+                }
+                put(this.toWrite, slot);
+                if (slot == END) {
+                    break;
+                }
+            }
+        } catch (Throwable t) {
+            setError(t);
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                Slot slot = take(this.toWrite);
+                if (slot == END) {
+                    break;
+                }
+                if (slot.sample) {
+                    this.likelihood += slot.likelihood;
+                }
+                this.outputCollector.collect(slot.key, slot.doc);
+                put(this.free, slot);
+            }
+        } catch (Throwable t) {
+            setError(t);
+        }
+    }
+
+    //只记录最先出现的错误，其余线程因它退出时抛出的异常不覆盖
+    private synchronized void setError(Throwable t) {
+        if (this.error == null) {
+            this.error = t;
+        }
+    }
+
+    private Slot take(BlockingQueue<Slot> queue) throws IOException {
+        try {
+            Slot slot;
+            //其他线程出错后不会再放入，避免一直阻塞
+            while ((slot = queue.poll(1, TimeUnit.SECONDS)) == null) {
+                checkError();
+            }
+            return slot;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void put(BlockingQueue<Slot> queue, Slot slot) throws IOException {
+        try {
+            while (!queue.offer(slot, 1, TimeUnit.SECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        checkError();
+    }
+
+    private void join(Thread thread) throws IOException {
+        try {
+            while (thread.isAlive()) {
+                thread.join(1000);
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (this.error != null) {
+            throw new IOException("Sampling pipeline failed.", this.error);
+        }
+    }
+
+    private static class Slot {
+        Text key = new Text();
+        DocumentWritable doc = new DocumentWritable();
+        boolean sample = false;
+        long likelihood = 0;
+    }
+}
@@ -0,0 +1,193 @@
+package com.weibo.ml.lda;
+
+import com.weibo.misc.RandomFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * reducer内部的多线程采样（AD-LDA）
+ * 1. 所有线程共享reducer读入的nwz，每个线程有自己的采样器、nzd、随机数和delta_nwz；
+ *    delta_nwz 总是按 hybrid 存放，只为采样到的词分配行，线程数多时不会每个线程都占一份V×K
+ * 2. 每个线程使用nz的私有副本，每处理 syncDocs 篇文档把自己的改变量合并到全局nz，再取回全局nz
+ * 3. reduce 把文档复制后放入队列，由各线程取走采样并输出
+ * 4. 结束时各线程的delta_nwz汇总到reducer的delta_nwz，之后与单线程一样输出
+ * Created by yuanye8 on 16/10/18.
+ */
+public class SamplingWorkerPool {
+    public static Logger LOG = Logger.getAnonymousLogger();
+    private static final Item END = new Item(null, null);
+
+    private BlockingQueue<Item> queue = null;
+    private Worker[] workers = null;
+    private Thread[] threads = null;
+    //全局nz，合并时加锁
+    private final int[] nz;
+    private TopicSampler master = null;
+    private int syncDocs = 0;
+    private volatile Throwable error = null;
+    //OutputCollector 和 Reporter 不是线程安全的，输出时加锁
+    private final Object outputLock = new Object();
+    private OutputCollector<Text, DocumentWritable> outputCollector = null;
+    private Reporter reporter = null;
+
+    /**
+     * @param randomType 随机数类型，见RandomFactory
+     * @param seed 任务的种子，第i个线程使用由它派生的第i个子序列
+     * @param recordDelta 是否记录各线程的delta_nwz；为false时finish不汇总
+     */
+    public SamplingWorkerPool(TopicSampler master, int numThreads, int[] nz, int numWords, int syncDocs,
+                              String randomType, long seed, boolean recordDelta) {
+        this.nz = nz;
+        this.master = master;
+        this.syncDocs = syncDocs;
+        this.queue = new ArrayBlockingQueue<Item>(numThreads * 64);
+        this.workers = new Worker[numThreads];
+        this.threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            this.workers[i] = new Worker(master, nz, recordDelta ? new HybridWordTopicMatrix(numWords, nz.length) : null,
+                    RandomFactory.create(randomType, RandomFactory.deriveSeed(seed, i)));
+            this.threads[i] = new Thread(this.workers[i], "gibbs-sampler-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+        LOG.info("Start " + numThreads + " sampling threads.");
+    }
+
+    /**
+     * 复制文档并交给采样线程，Hadoop会复用key和value对象
+     */
+    public void submit(Text key, DocumentWritable doc,
+                       OutputCollector<Text, DocumentWritable> outputCollector, Reporter reporter) throws IOException {
+        this.outputCollector = outputCollector;
+        this.reporter = reporter;
+        DocumentWritable copy = new DocumentWritable();
+        copy.set(doc);
+        put(new Item(new Text(key), copy));
+    }
+
+    /**
+     * 不需要采样的文档直接输出，与采样线程的输出互斥
+     */
+    public void collect(Text key, DocumentWritable doc,
+                        OutputCollector<Text, DocumentWritable> outputCollector) throws IOException {
+        synchronized (this.outputLock) {
+            outputCollector.collect(key, doc);
+        }
+    }
+
+    /**
+     * 等待所有文档采样完毕，并把各线程的delta_nwz累加到deltaNwz，词数统计累加到主采样器
+     */
+    public void finish(WordTopicMatrix deltaNwz) throws IOException {
+        for (int i = 0; i < this.threads.length; i++) {
+            put(END);
+        }
+        for (Thread thread : this.threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        checkError();
+        for (Worker worker : this.workers) {
+            this.master.addTokenStats(worker.sampler);
+            if (deltaNwz != null) {
+                deltaNwz.addAll(worker.deltaNwz);
+            }
+            worker.deltaNwz = null;
+        }
+    }
+
+    private void put(Item item) throws IOException {
+        try {
+            //采样线程出错后不会再消费队列，避免一直阻塞
+            while (!this.queue.offer(item, 1, TimeUnit.SECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (this.error != null) {
+            throw new IOException("Sampling thread failed.", this.error);
+        }
+    }
+
+    private static class Item {
+        Text key;
+        DocumentWritable doc;
+
+        Item(Text key, DocumentWritable doc) {
+            this.key = key;
+            this.doc = doc;
+        }
+    }
+
+    private class Worker implements Runnable {
+        TopicSampler sampler;
+        int[] nzd;
+        //线程私有的nz，以及上次合并时的全局nz
+        int[] localNz;
+        int[] baseNz;
+        WordTopicMatrix deltaNwz;
+
+        Worker(TopicSampler master, int[] nz, WordTopicMatrix deltaNwz, Random randomProvider) {
+            this.nzd = new int[nz.length];
+            this.localNz = nz.clone();
+            this.baseNz = nz.clone();
+            this.deltaNwz = deltaNwz;
+            this.sampler = master.fork(this.localNz, randomProvider);
+        }
+
+        public void run() {
+            try {
+                int n = 0;
+                while (true) {
+                    Item item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    double likelihood = GibbsSamplingReducer.sampleDocument(this.sampler, item.doc, this.nzd, this.deltaNwz);
+                    synchronized (outputLock) {
+                        reporter.incrCounter(
+                                GibbsSamplingTool.GibbsSamplingCounter.LIKELIHOOD,
+                                (long) (likelihood * GibbsSamplingTool.RESOLUTION));
+                        outputCollector.collect(item.key, item.doc);
+                    }
+                    if (++n % syncDocs == 0) {
+                        syncTopicCounts();
+                    }
+                }
+                syncTopicCounts();
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        /**
+         * 把本线程对nz的改变量合并到全局nz，再取回其他线程合并后的结果
+         */
+        private void syncTopicCounts() {
+            synchronized (nz) {
+                for (int i = 0; i < nz.length; i++) {
+                    nz[i] += this.localNz[i] - this.baseNz[i];
+                }
+                System.arraycopy(nz, 0, this.localNz, 0, nz.length);
+                System.arraycopy(nz, 0, this.baseNz, 0, nz.length);
+            }
+            this.sampler.refreshTopicCounts();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.weibo.ml.lda;
+
+import com.weibo.tool.FolderReader;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.logging.Logger;
+
+/**
+ * 节点级的模型缓存：同一节点上的多个reducer只从HDFS读一次 nwz.N，转成本地文件后各自只读映射
+ * 1. 缓存文件名由模型路径及其修改时间决定，同一轮迭代的任务得到同一个文件，不同迭代互不影响
+ * 2. 用文件锁保证一个节点上只有一个任务生成缓存，其余任务等待后直接映射
+ * 3. 新一轮迭代生成缓存时删除同一训练目录下之前迭代的缓存；已映射的任务不受删除影响
+ * 缓存目录由 model.cache.dir 指定，需为节点上各任务都可写的本地目录
+ * Created by yuanye8 on 16/10/18.
+ */
+public class SharedModelCache {
+    private static Logger LOG = Logger.getLogger(SharedModelCache.class.getName());
+    public static final String DEFAULT_CACHE_DIR = "/tmp/hadoop-lda-model";
+
+    public static MappedWordTopicMatrix open(JobConf conf, String modelPath, int numWords, int numTopics)
+            throws IOException {
+        Path path = new Path(modelPath);
+        FileSystem fs = path.getFileSystem(conf);
+        long modificationTime = fs.getFileStatus(path).getModificationTime();
+        for (FileStatus status : fs.listStatus(path)) {
+            modificationTime = Math.max(modificationTime, status.getModificationTime());
+        }
+        String runKey = MD5Hash.digest(fs.makeQualified(path).getParent().toString()).toString();
+        String key = runKey + "-" + MD5Hash.digest(fs.makeQualified(path) + "@" + modificationTime).toString();
+
+        File dir = new File(conf.get("model.cache.dir", DEFAULT_CACHE_DIR));
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Can not create model cache dir " + dir);
+        }
+        File modelFile = new File(dir, key + ".model");
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, key + ".lock"), "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            if (!modelFile.exists()) {
+                long startTime = System.currentTimeMillis();
+                File tmpFile = new File(dir, key + ".tmp");
+                FolderReader reader = new FolderReader(path, fs, conf);
+                MappedWordTopicMatrix.write(reader, tmpFile, numWords, numTopics);
+                reader.close();
+                if (!tmpFile.renameTo(modelFile)) {
+                    throw new IOException("Can not rename " + tmpFile + " to " + modelFile);
+                }
+                LOG.info("Localize " + modelPath + " to " + modelFile + " (" + modelFile.length() + " bytes) using "
+                        + (System.currentTimeMillis() - startTime) + " milliseconds.");
+                removeStale(dir, runKey, key);
+            } else {
+                LOG.info("Reuse localized model " + modelFile + " for " + modelPath);
+            }
+            //持有锁时打开，避免被下一轮迭代删除
+            return new MappedWordTopicMatrix(modelFile, numWords, numTopics);
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    /**
+     * 删除同一训练目录下其他迭代的缓存文件
+     */
+    private static void removeStale(File dir, String runKey, String key) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(runKey + "-") && !name.startsWith(key + ".")) {
+                if (f.delete()) {
+                    LOG.info("Remove stale model cache " + f);
+                }
+            }
+        }
+    }
+}
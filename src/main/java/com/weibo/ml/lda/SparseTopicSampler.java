@@ -0,0 +1,192 @@
+package com.weibo.ml.lda;
+
+import java.util.Random;
+
+/**
+ * SparseLDA 分桶采样（Yao, Mimno, McCallum 2009）
+ * 条件概率 p(z=k) 正比于 (nzd[k] + alpha) * (nwz[w][k] + beta) / (nz[k] + V * beta)，拆成三部分：
+ * 1. 平滑桶 s = sum_k alpha * beta / (nz[k] + V * beta)，与文档和词都无关，增量维护
+ * 2. 文档桶 r = sum_k nzd[k] * beta / (nz[k] + V * beta)，只涉及当前文档非零的主题
+ * 3. 词桶   q = sum_k nwz[w][k] * (nzd[k] + alpha) / (nz[k] + V * beta)，只涉及当前词非零的主题
+ * 每个主题的系数 (nzd[k] + alpha) / (nz[k] + V * beta) 被缓存，只有计数变化的主题才更新，
+ * 因此每个词的代价与文档和词的非零主题数成正比，而不是K
+ * Created by yuanye8 on 16/10/18.
+ */
+public class SparseTopicSampler extends TopicSampler {
+    //1 / (nz[k] + V * beta)
+    private double[] inv = null;
+    //(nzd[k] + alpha) / (nz[k] + V * beta)
+    private double[] coef = null;
+    private double smoothingMass = 0.0;
+    private double docMass = 0.0;
+    //每个词非零的主题
+    private NonZeroTopicIndex wordTopics = null;
+    //当前文档非零的主题
+    private int[] docTopics = null;
+    private boolean[] inDoc = null;
+    private int docSize = 0;
+    //词桶中每个非零主题的概率，下标与wordTopics对应
+    private double[] wordProbs = null;
+
+    @Override
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        super.init(numTopics, alpha, beta, nwz, nz, randomProvider);
+        this.inv = new double[numTopics];
+        this.coef = new double[numTopics];
+        this.docTopics = new int[numTopics];
+        this.inDoc = new boolean[numTopics];
+        this.wordProbs = new double[numTopics];
+        refreshTopicCounts();
+        //多线程时wordTopics由fork传入，不重复建立
+        if (this.wordTopics == null) {
+            this.wordTopics = new NonZeroTopicIndex(this.numWords);
+            int[] topics = new int[numTopics];
+            int[] counts = new int[numTopics];
+            for (int w = 0; w < this.numWords; w++) {
+                this.wordTopics.build(w, topics, nwz.getNonZeros(w, topics, counts));
+            }
+        }
+    }
+
+    @Override
+    public void refreshTopicCounts() {
+        this.smoothingMass = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            this.inv[i] = 1.0 / (this.nz[i] + this.numWords * this.beta);
+            this.coef[i] = this.alpha * this.inv[i];
+            this.smoothingMass += this.alpha * this.beta * this.inv[i];
+        }
+    }
+
+    @Override
+    protected TopicSampler newWorker() {
+        SparseTopicSampler worker = new SparseTopicSampler();
+        worker.wordTopics = this.wordTopics;
+        return worker;
+    }
+
+    @Override
+    public void startDocument(DocumentWritable doc, int[] nzd) {
+        super.startDocument(doc, nzd);
+        this.docSize = 0;
+        this.docMass = 0.0;
+        for (int i = 0; i < doc.getNumWords(); i++) {
+            int topic = doc.topics[i];
+            //每个非零主题只在第一次遇到时处理
+            if (!this.inDoc[topic]) {
+                addDocTopic(topic);
+                this.coef[topic] = (nzd[topic] + this.alpha) * this.inv[topic];
+                this.docMass += this.beta * nzd[topic] * this.inv[topic];
+            }
+        }
+    }
+
+    @Override
+    public boolean hasDocumentCache() {
+        return true;
+    }
+
+    @Override
+    public void endDocument() {
+        for (int i = 0; i < this.docSize; i++) {
+            int topic = this.docTopics[i];
+            this.coef[topic] = this.alpha * this.inv[topic];
+            this.inDoc[topic] = false;
+        }
+        this.docSize = 0;
+        this.docMass = 0.0;
+        super.endDocument();
+    }
+
+    @Override
+    protected void beforeTopicUpdate(int topic) {
+        this.smoothingMass -= this.alpha * this.beta * this.inv[topic];
+        this.docMass -= this.beta * this.nzd[topic] * this.inv[topic];
+    }
+
+    @Override
+    protected void afterTopicUpdate(int topic) {
+        this.inv[topic] = 1.0 / (this.nz[topic] + this.numWords * this.beta);
+        this.coef[topic] = (this.nzd[topic] + this.alpha) * this.inv[topic];
+        this.smoothingMass += this.alpha * this.beta * this.inv[topic];
+        this.docMass += this.beta * this.nzd[topic] * this.inv[topic];
+        if (this.nzd[topic] == 0 && this.inDoc[topic]) {
+            removeDocTopic(topic);
+        } else if (this.nzd[topic] > 0 && !this.inDoc[topic]) {
+            addDocTopic(topic);
+        }
+    }
+
+    @Override
+    protected void wordCountChanged(int word, int topic, int count, int delta) {
+        if (count == 0) {
+            this.wordTopics.remove(word, topic);
+        } else if (count == 1 && delta > 0) {
+            this.wordTopics.add(word, topic);
+        }
+    }
+
+    private void addDocTopic(int topic) {
+        this.docTopics[this.docSize++] = topic;
+        this.inDoc[topic] = true;
+    }
+
+    private void removeDocTopic(int topic) {
+        this.inDoc[topic] = false;
+        for (int i = 0; i < this.docSize; i++) {
+            if (this.docTopics[i] == topic) {
+                this.docTopics[i] = this.docTopics[--this.docSize];
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int sample(int position, int word, int docLength) {
+        int[] topics = this.wordTopics.topics(word);
+        //多线程时其他线程可能正在扩容该行
+        int size = Math.min(this.wordTopics.size(word), topics.length);
+        double wordMass = 0.0;
+        double pwz = 0.0;
+        for (int i = 0; i < size; i++) {
+            int topic = topics[i];
+            int count = this.nwz.get(word, topic);
+            this.wordProbs[i] = count * this.coef[topic];
+            wordMass += this.wordProbs[i];
+            pwz += count * this.inv[topic];
+        }
+        //sum_k (nwz[w][k] + beta) / (nz[k] + V * beta)
+        this.likelihood = pwz + this.smoothingMass / this.alpha;
+
+        double sample = this.randomProvider.nextDouble() * (this.smoothingMass + this.docMass + wordMass);
+        if (sample < wordMass) {
+            for (int i = 0; i < size; i++) {
+                sample -= this.wordProbs[i];
+                if (sample < 0) {
+                    return topics[i];
+                }
+            }
+            return topics[size - 1];
+        }
+        sample -= wordMass;
+        if (sample < this.docMass && this.docSize > 0) {
+            for (int i = 0; i < this.docSize; i++) {
+                int topic = this.docTopics[i];
+                sample -= this.beta * this.nzd[topic] * this.inv[topic];
+                if (sample < 0) {
+                    return topic;
+                }
+            }
+            return this.docTopics[this.docSize - 1];
+        }
+        sample -= this.docMass;
+        //平滑桶的概率很小，很少走到这里
+        for (int i = 0; i < this.numTopics; i++) {
+            sample -= this.alpha * this.beta * this.inv[i];
+            if (sample < 0) {
+                return i;
+            }
+        }
+        return this.numTopics - 1;
+    }
+}
@@ -0,0 +1,317 @@
+package com.weibo.ml.lda;
+
+import com.weibo.misc.Flags;
+import com.weibo.tool.FolderReader;
+import com.weibo.tool.GenericTool;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * 随机折叠变分推断（SCVB0，Foulds et al. 2013）训练入口，按mini-batch读入文档，适用于持续增加的语料
+ * 1. 全局状态为期望计数 nPhi[w][k] 和 nZ[k]，每个batch内对每篇文档：
+ *    gamma[k] 正比于 (nPhi[w][k] + beta) / (nZ[k] + V * beta) * (nTheta[k] + alpha)，
+ *    nTheta = (1 - rhoTheta) * nTheta + rhoTheta * docLength * gamma，先做 burn_in 遍，最后一遍累加batch的期望计数
+ * 2. batch结束后 nPhi = (1 - rho) * nPhi + rho * (语料词数 / batch词数) * batch期望计数，rho = 1 / (tau + t)^kappa
+ *    对整个nPhi乘 (1 - rho) 的代价为 V*K，这里只维护一个全局系数scale，nPhi的实际值为 scale * phi
+ * 3. 每 checkpoint_batches 个batch及结束时，把取整后的nPhi按ExportModelTool的文本格式写出，可由LdaModel.loadModel直接读取
+ * 4. 词表来自InitModelTool生成的words，或者从已有的模型继续训练
+ * Created by yuanye8 on 16/10/18.
+ */
+public class StochasticTrainer implements GenericTool {
+    private static Logger LOG = Logger.getAnonymousLogger();
+    //scale小于该值时把系数乘回phi，避免下溢
+    private static final double MIN_SCALE = 1e-30;
+
+    private int numTopics = 0;
+    private int numWords = 0;
+    private double alpha = 0.0;
+    private double beta = 0.0;
+    private Map<String, Integer> wordIds = null;
+    private List<String> words = null;
+    //nPhi = scale * phi
+    private double[][] phi = null;
+    private double scale = 1.0;
+    private double[] nZ = null;
+    private Random randomProvider = new Random();
+
+    public void run(String[] args) throws Exception {
+        Flags flags = new Flags();
+        flags.add("input", "SequenceFile folder of documents, Text value of each entry is the doc.");
+        flags.add("output", "the model checkpoint, a plain text file.");
+        flags.addWithDefaultValue("words", "", "word list generated by LdaTrainer or InitModelTool, required unless model is given.");
+        flags.addWithDefaultValue("model", "", "continue training from this plain text model (local file).");
+        flags.addWithDefaultValue("num_topics", "100", "number of topics, ignored when model is given. [default 100]");
+        flags.addWithDefaultValue("alpha", "-1", "symmetric hyper-parameter alpha, ignored when model is given. [default 50.0/k]");
+        flags.addWithDefaultValue("beta", "0.01", "symmetric hyper-parameter beta, ignored when model is given. [default 0.01]");
+        flags.addWithDefaultValue("batch_size", "1000", "documents per mini-batch. [default 1000]");
+        flags.addWithDefaultValue("corpus_tokens", "0", "number of tokens in the whole corpus, 0 means tokens seen so far in the first pass, and the tokens of one whole pass after it. [default 0]");
+        flags.addWithDefaultValue("tau", "1000", "step size rho = 1 / (tau + t)^kappa for the t-th batch. [default 1000]");
+        flags.addWithDefaultValue("kappa", "0.9", "step size decay, in (0.5, 1]. [default 0.9]");
+        flags.addWithDefaultValue("start_batch", "0", "batch number t to start the step size schedule with, when continuing from a model. [default 0]");
+        flags.addWithDefaultValue("burn_in", "2", "passes over each document before collecting its statistics. [default 2]");
+        flags.addWithDefaultValue("passes", "1", "passes over the input. [default 1]");
+        flags.addWithDefaultValue("checkpoint_batches", "100", "write the model every this many batches. [default 100]");
+        flags.parseAndCheck(args);
+
+        if (flags.getString("model").length() > 0) {
+            loadModel(flags.getString("model"));
+        } else {
+            this.numTopics = flags.getInt("num_topics");
+            this.alpha = flags.getDouble("alpha");
+            if (this.alpha == -1.0) {
+                this.alpha = 50.0 / this.numTopics;
+            }
+            this.beta = flags.getDouble("beta");
+            loadWords(new Path(flags.getString("words")));
+            initRandom();
+        }
+        LOG.info("alpha:" + this.alpha + " beta:" + this.beta + " num_topics:" + this.numTopics + " num_words:" + this.numWords);
+
+        Path input = new Path(flags.getString("input"));
+        Path output = new Path(flags.getString("output"));
+        int batchSize = flags.getInt("batch_size");
+        long corpusTokens = Long.parseLong(flags.getString("corpus_tokens"));
+        double tau = flags.getDouble("tau");
+        double kappa = flags.getDouble("kappa");
+        int burnIn = flags.getInt("burn_in");
+        int checkpointBatches = flags.getInt("checkpoint_batches");
+        int t = flags.getInt("start_batch");
+
+        long seenTokens = 0;
+        //第一遍读过的词数，之后各遍即为整个语料的词数；多遍时不能用seenTokens，否则语料被重复计入
+        long corpusSeen = 0;
+        List<int[]> batch = new ArrayList<int[]>();
+        for (int pass = 0; pass < flags.getInt("passes"); pass++) {
+            FolderReader reader = new FolderReader(input);
+            Text key = new Text();
+            Text value = new Text();
+            boolean more = true;
+            while (more) {
+                more = reader.next(key, value);
+                if (more) {
+                    int[] doc = toWordIds(value.toString());
+                    if (doc.length > 0) {
+                        batch.add(doc);
+                    }
+                }
+                if (batch.size() == batchSize || (!more && batch.size() > 0)) {
+                    long batchTokens = 0;
+                    for (int[] doc : batch) {
+                        batchTokens += doc.length;
+                    }
+                    seenTokens += batchTokens;
+                    if (pass == 0) {
+                        corpusSeen += batchTokens;
+                    }
+                    double rho = Math.pow(tau + t, -kappa);
+                    double corpusScale = (double) (corpusTokens > 0 ? corpusTokens : corpusSeen) / batchTokens;
+                    updateBatch(batch, rho, corpusScale, burnIn);
+                    batch.clear();
+                    t++;
+                    if (t % checkpointBatches == 0) {
+                        writeModel(output);
+                        LOG.info("Batch #" + t + ", " + seenTokens + " tokens seen, checkpoint written.");
+                    }
+                }
+            }
+            reader.close();
+        }
+        writeModel(output);
+        LOG.info("Training done after " + t + " batches, " + seenTokens + " tokens seen.");
+    }
+
+    /**
+     * 处理一个batch并更新全局期望计数
+     * @param corpusScale 语料词数 / batch词数
+     */
+    private void updateBatch(List<int[]> batch, double rho, double corpusScale, int burnIn) {
+        Map<Integer, double[]> batchPhi = new HashMap<Integer, double[]>();
+        double[] batchZ = new double[this.numTopics];
+        double[] nTheta = new double[this.numTopics];
+        double[] gamma = new double[this.numTopics];
+        double[] inv = new double[this.numTopics];
+        for (int i = 0; i < this.numTopics; i++) {
+            inv[i] = 1.0 / (this.nZ[i] + this.numWords * this.beta);
+        }
+
+        for (int[] doc : batch) {
+            for (int i = 0; i < this.numTopics; i++) {
+                nTheta[i] = (double) doc.length / this.numTopics;
+            }
+            int step = 0;
+            for (int pass = 0; pass <= burnIn; pass++) {
+                for (int word : doc) {
+                    double[] row = this.phi[word];
+                    double norm = 0.0;
+                    for (int i = 0; i < this.numTopics; i++) {
+                        gamma[i] = (this.scale * row[i] + this.beta) * inv[i] * (nTheta[i] + this.alpha);
+                        norm += gamma[i];
+                    }
+                    double rhoTheta = Math.pow(10.0 + step++, -0.9);
+                    for (int i = 0; i < this.numTopics; i++) {
+                        gamma[i] /= norm;
+                        nTheta[i] = (1.0 - rhoTheta) * nTheta[i] + rhoTheta * doc.length * gamma[i];
+                    }
+                    if (pass == burnIn) {
+                        double[] stats = batchPhi.get(word);
+                        if (stats == null) {
+                            stats = new double[this.numTopics];
+                            batchPhi.put(word, stats);
+                        }
+                        for (int i = 0; i < this.numTopics; i++) {
+                            stats[i] += gamma[i];
+                            batchZ[i] += gamma[i];
+                        }
+                    }
+                }
+            }
+        }
+
+        //nPhi = (1 - rho) * nPhi + rho * corpusScale * batchPhi
+        if (rho >= 1.0) {
+            //第一个batch的rho可能为1，旧的期望计数全部丢弃
+            for (double[] row : this.phi) {
+                Arrays.fill(row, 0.0);
+            }
+            this.scale = 1.0;
+        } else {
+            this.scale *= 1.0 - rho;
+        }
+        double weight = rho * corpusScale / this.scale;
+        for (Map.Entry<Integer, double[]> e : batchPhi.entrySet()) {
+            double[] row = this.phi[e.getKey()];
+            double[] stats = e.getValue();
+            for (int i = 0; i < this.numTopics; i++) {
+                row[i] += weight * stats[i];
+            }
+        }
+        for (int i = 0; i < this.numTopics; i++) {
+            this.nZ[i] = Math.max(0.0, 1.0 - rho) * this.nZ[i] + rho * corpusScale * batchZ[i];
+        }
+        if (this.scale < MIN_SCALE) {
+            for (double[] row : this.phi) {
+                for (int i = 0; i < this.numTopics; i++) {
+                    row[i] *= this.scale;
+                }
+            }
+            this.scale = 1.0;
+        }
+    }
+
+    private int[] toWordIds(String text) {
+        String[] tokens = text.split(" +");
+        int[] ids = new int[tokens.length];
+        int n = 0;
+        for (String token : tokens) {
+            Integer id = this.wordIds.get(token);
+            if (id != null) {
+                ids[n++] = id.intValue();
+            }
+        }
+        int[] doc = new int[n];
+        System.arraycopy(ids, 0, doc, 0, n);
+        return doc;
+    }
+
+    /**
+     * 没有已有模型时，随机初始化少量期望计数打破主题间的对称
+     */
+    private void initRandom() {
+        this.phi = new double[this.numWords][this.numTopics];
+        this.nZ = new double[this.numTopics];
+        for (int w = 0; w < this.numWords; w++) {
+            for (int i = 0; i < this.numTopics; i++) {
+                this.phi[w][i] = this.randomProvider.nextDouble();
+                this.nZ[i] += this.phi[w][i];
+            }
+        }
+    }
+
+    private void loadWords(Path path) throws IOException {
+        this.wordIds = new HashMap<String, Integer>();
+        FolderReader reader = new FolderReader(path);
+        Text key = new Text();
+        IntWritable value = new IntWritable();
+        while (reader.next(key, value)) {
+            this.wordIds.put(key.toString(), Integer.valueOf(value.get()));
+        }
+        reader.close();
+        this.numWords = this.wordIds.size();
+        String[] byId = new String[this.numWords];
+        for (Map.Entry<String, Integer> e : this.wordIds.entrySet()) {
+            byId[e.getValue().intValue()] = e.getKey();
+        }
+        this.words = new ArrayList<String>();
+        for (String word : byId) {
+            this.words.add(word);
+        }
+    }
+
+    /**
+     * 从文本模型继续训练，模型中的计数为最近n次迭代之和，这里取平均作为期望计数
+     */
+    private void loadModel(String model) throws IOException {
+        LdaModel lda = new LdaModel();
+        lda.loadModel(model);
+        this.numTopics = lda.getNumTopics();
+        this.numWords = lda.getNumWords();
+        this.alpha = lda.getAlpha();
+        this.beta = lda.getBeta();
+        int n = Math.max(1, lda.getNumTrainingIterations());
+        this.wordIds = new HashMap<String, Integer>();
+        this.words = new ArrayList<String>();
+        this.phi = new double[this.numWords][this.numTopics];
+        this.nZ = new double[this.numTopics];
+        for (int w = 0; w < this.numWords; w++) {
+            String word = lda.getWord(w);
+            this.wordIds.put(word, Integer.valueOf(w));
+            this.words.add(word);
+            int[] counts = lda.nwz.get(word);
+            for (int i = 0; i < this.numTopics; i++) {
+                this.phi[w][i] = (double) counts[i] / n;
+                this.nZ[i] += this.phi[w][i];
+            }
+        }
+    }
+
+    /**
+     * 按ExportModelTool的格式写出：alpha、beta、主题数、迭代次数（这里为1），之后每行为词及其在各主题下的计数
+     * 先写临时文件再改名，读取方不会读到写了一半的模型
+     */
+    private void writeModel(Path output) throws IOException {
+        FileSystem fs = FileSystem.get(new JobConf());
+        Path tmp = new Path(output + "_tmp");
+        OutputStreamWriter writer = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+        writer.write(this.alpha + "\n");
+        writer.write(this.beta + "\n");
+        writer.write(this.numTopics + "\n");
+        writer.write(1 + "\n");
+        for (int w = 0; w < this.numWords; w++) {
+            writer.write(this.words.get(w));
+            double[] row = this.phi[w];
+            for (int i = 0; i < this.numTopics; i++) {
+                writer.write(" ");
+                writer.write(Long.toString(Math.round(this.scale * row[i])));
+            }
+            writer.write("\n");
+        }
+        writer.close();
+        if (fs.exists(output)) {
+            fs.delete(output);
+        }
+        fs.rename(tmp, output);
+    }
+}
@@ -0,0 +1,184 @@
+package com.weibo.ml.lda;
+
+import com.weibo.mapred.MapReduceJobConf;
+import com.weibo.tool.FolderReader;
+import com.weibo.tool.FolderWriter;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * 删除训练中计数过小的主题，并把剩余主题的id压缩为 0..K'-1
+ * 1. 第一遍读取nwz统计nz，nz小于 minFraction * 总词数 的主题为死主题（至少保留nz最大的主题）
+ * 2. 第二遍改写nwz：死主题下的计数合并到该词计数最大的存活主题 target[w]，再按新id输出K'列
+ * 3. 主题映射和target写入 topicmap 文件，由 RemapTopicsMapper 改写docs中每个词的主题，与新的nwz保持一致
+ * 4. 替换 docs.N 和 nwz.N，并把新的主题数写入 parameters
+ * Created by yuanye8 on 16/10/18.
+ */
+public class TopicPruner {
+    private static Logger LOG = Logger.getAnonymousLogger();
+
+    /**
+     * @return 剪枝后的主题数，没有死主题时返回原主题数且不改动任何文件
+     */
+    public int prune(Path workingDir, Path docs, Path nwz, int numTopics, int numWords,
+                     double minFraction, int map, int reduce) throws IOException {
+        JobConf conf = new JobConf();
+        FileSystem fs = FileSystem.get(conf);
+
+        long[] nz = new long[numTopics];
+        long total = 0;
+        FolderReader reader = new FolderReader(nwz);
+        IntWritable key = new IntWritable();
+        WordInfoWritable value = new WordInfoWritable(numTopics);
+        while (reader.next(key, value)) {
+            for (int i = 0; i < numTopics; i++) {
+                nz[i] += value.getTopicCount(i);
+                total += value.getTopicCount(i);
+            }
+        }
+        reader.close();
+
+        int largest = 0;
+        for (int i = 1; i < numTopics; i++) {
+            if (nz[i] > nz[largest]) {
+                largest = i;
+            }
+        }
+        int[] topicMap = new int[numTopics];
+        int newTopics = 0;
+        for (int i = 0; i < numTopics; i++) {
+            if (i == largest || nz[i] >= minFraction * total) {
+                topicMap[i] = newTopics++;
+            } else {
+                topicMap[i] = -1;
+            }
+        }
+        if (newTopics == numTopics) {
+            LOG.info("No dead topic found.");
+            return numTopics;
+        }
+        LOG.info("Prune " + (numTopics - newTopics) + " dead topics, " + newTopics + " topics left.");
+
+        //死主题的计数合并到该词计数最大的存活主题
+        int[] target = new int[numWords];
+        Path prunedNwz = new Path(nwz + "_pruned");
+        reader = new FolderReader(nwz);
+        FolderWriter writer = new FolderWriter(prunedNwz, IntWritable.class, WordInfoWritable.class);
+        WordInfoWritable pruned = new WordInfoWritable(newTopics);
+        for (int w = 0; w < numWords; w++) {
+            target[w] = topicMap[largest];
+        }
+        while (reader.next(key, value)) {
+            int best = largest;
+            int dead = 0;
+            for (int i = 0; i < numTopics; i++) {
+                if (topicMap[i] < 0) {
+                    dead += value.getTopicCount(i);
+                } else if (value.getTopicCount(i) > value.getTopicCount(best)) {
+                    best = i;
+                }
+            }
+            target[key.get()] = topicMap[best];
+            for (int i = 0; i < numTopics; i++) {
+                if (topicMap[i] >= 0) {
+                    pruned.setTopicCount(topicMap[i], value.getTopicCount(i));
+                }
+            }
+            pruned.setTopicCount(topicMap[best], pruned.getTopicCount(topicMap[best]) + dead);
+            pruned.setIsPartial(false);
+            writer.append(key, pruned);
+        }
+        writer.close();
+        reader.close();
+
+        Path topicMapFile = new Path(workingDir, "topicmap");
+        FSDataOutputStream out = fs.create(topicMapFile, true);
+        out.writeInt(numTopics);
+        for (int i = 0; i < numTopics; i++) {
+            out.writeInt(topicMap[i]);
+        }
+        out.writeInt(numWords);
+        for (int w = 0; w < numWords; w++) {
+            out.writeInt(target[w]);
+        }
+        out.close();
+
+        Path prunedDocs = new Path(docs + "_pruned");
+        MapReduceJobConf job = new MapReduceJobConf(getClass(), map, reduce);
+        job.setJobName("PruneTopicsForLDA");
+        job.setInputOutputPath(docs, prunedDocs);
+        job.set("topic.map", topicMapFile.makeQualified(fs).toString());
+        job.setMapperClass(RemapTopicsMapper.class);
+        job.setNumReduceTasks(0);
+        job.setKeyValueClass(Text.class, DocumentWritable.class, Text.class, DocumentWritable.class);
+        JobClient.runJob(job);
+
+        fs.delete(docs);
+        fs.rename(prunedDocs, docs);
+        fs.delete(nwz);
+        fs.rename(prunedNwz, nwz);
+        fs.delete(topicMapFile);
+
+        //主题数写回parameters，alpha和beta不变
+        Path parameters = new Path(workingDir, "parameters");
+        FSDataInputStream ins = fs.open(parameters);
+        double alpha = ins.readDouble();
+        double beta = ins.readDouble();
+        ins.close();
+        out = fs.create(parameters, true);
+        out.writeDouble(alpha);
+        out.writeDouble(beta);
+        out.writeInt(newTopics);
+        out.close();
+        return newTopics;
+    }
+
+    /**
+     * 按topicmap改写文档中每个词的主题
+     */
+    public static class RemapTopicsMapper implements Mapper<Text, DocumentWritable, Text, DocumentWritable> {
+        private int[] topicMap = null;
+        private int[] target = null;
+
+        public void configure(JobConf conf) {
+            try {
+                Path path = new Path(conf.get("topic.map"));
+                FSDataInputStream ins = path.getFileSystem(conf).open(path);
+                this.topicMap = new int[ins.readInt()];
+                for (int i = 0; i < this.topicMap.length; i++) {
+                    this.topicMap[i] = ins.readInt();
+                }
+                this.target = new int[ins.readInt()];
+                for (int w = 0; w < this.target.length; w++) {
+                    this.target[w] = ins.readInt();
+                }
+                ins.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void map(Text key, DocumentWritable doc, OutputCollector<Text, DocumentWritable> outputCollector, Reporter reporter) throws IOException {
+            for (int i = 0; i < doc.getNumWords(); i++) {
+                int topic = this.topicMap[doc.topics[i]];
+                doc.topics[i] = topic >= 0 ? topic : this.target[doc.words[i]];
+            }
+            outputCollector.collect(key, doc);
+        }
+
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import java.util.Random;
+
+/**
+ * 吉布斯采样器基类，GibbsSamplingReducer 通过它完成 -1 -> sampling -> +1
+ * 1. removeToken/addToken 负责维护 nzd、nz、nwz 三个计数，子类通过 beforeTopicUpdate、afterTopicUpdate、
+ *    wordCountChanged 同步更新自己的缓存
+ * 2. sample 根据去除当前词后的计数抽取一个新主题
+ * 3. startDocument/endDocument 标记一篇文档的开始和结束，便于子类维护文档相关的缓存
+ * 4. 多线程采样时通过 fork 为每个线程创建采样器，nwz 及按词维护的结构在线程间共享，
+ *    其余状态（nzd、nz副本、随机数、临时数组）为线程私有，修改nwz时持有 WordTopicMatrix.lock(word)
+ * Created by yuanye8 on 16/10/18.
+ */
+public abstract class TopicSampler {
+    protected int numTopics = 0;
+    protected int numWords = 0;
+    protected double alpha = 0.0;
+    protected double beta = 0.0;
+    protected WordTopicMatrix nwz = null;
+    protected int[] nz = null;
+    protected int[] nzd = null;
+    protected DocumentWritable doc = null;
+    protected Random randomProvider = null;
+    //nwz是否被多个线程共享，共享时对nwz某一行的修改需要加锁
+    protected boolean shared = false;
+
+    /**
+     * 最近一次采样时，当前词在所有主题下 p(w|z) 之和，用于 LIKELIHOOD 计数
+     */
+    protected double likelihood = 0.0;
+
+    //addToken的次数，以及其中主题与removeToken时不同的次数
+    private long tokens = 0;
+    private long changedTokens = 0;
+    private int removedTopic = -1;
+
+    /**
+     * 根据名称创建采样器
+     * @param type dense: 全量计算; sparse: SparseLDA 分桶采样; alias: alias表 + Metropolis-Hastings;
+     *             ftree: F+树精确采样
+     * @return
+     */
+    public static TopicSampler create(String type) {
+        if (type == null || type.equals("dense")) {
+            return new DenseTopicSampler();
+        } else if (type.equals("sparse")) {
+            return new SparseTopicSampler();
+        } else if (type.equals("alias")) {
+            return new AliasTopicSampler();
+        } else if (type.equals("ftree")) {
+            return new FTreeTopicSampler();
+        }
+        throw new RuntimeException("Unknown sampler type: " + type);
+    }
+
+    /**
+     * 读取采样器自己的参数，在init之前调用
+     */
+    public void configure(JobConf conf) {
+    }
+
+    /**
+     * 模型参数读取完毕后调用，nwz 和 nz 为采样器与 reducer 共享的计数
+     */
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        this.numTopics = numTopics;
+        this.numWords = nwz.getNumWords();
+        this.alpha = alpha;
+        this.beta = beta;
+        this.nwz = nwz;
+        this.nz = nz;
+        this.randomProvider = randomProvider;
+    }
+
+    /**
+     * @param doc 当前文档
+     * @param nzd 当前文档的主题分布，已由调用方统计完毕
+     */
+    public void startDocument(DocumentWritable doc, int[] nzd) {
+        this.doc = doc;
+        this.nzd = nzd;
+    }
+
+    public void endDocument() {
+        this.doc = null;
+    }
+
+    /**
+     * @return startDocument 是否按文档重建缓存（代价与文档长度成正比）；
+     *         为true时按词顺序采样每个词都要切换一次文档，不能使用 sampler.order=word
+     */
+    public boolean hasDocumentCache() {
+        return false;
+    }
+
+    public void removeToken(int word, int topic) {
+        this.removedTopic = topic;
+        updateToken(word, topic, -1);
+    }
+
+    public void addToken(int word, int topic) {
+        this.tokens++;
+        if (topic != this.removedTopic) {
+            this.changedTokens++;
+        }
+        updateToken(word, topic, 1);
+    }
+
+    /**
+     * 同步修改三个计数，nwz只读的采样器（UncollapsedTopicSampler）覆盖此方法
+     */
+    protected void updateToken(int word, int topic, int delta) {
+        beforeTopicUpdate(topic);
+        this.nzd[topic] += delta;
+        this.nz[topic] += delta;
+        afterTopicUpdate(topic);
+        if (this.shared) {
+            synchronized (this.nwz.lock(word)) {
+                wordCountChanged(word, topic, this.nwz.add(word, topic, delta), delta);
+            }
+        } else {
+            wordCountChanged(word, topic, this.nwz.add(word, topic, delta), delta);
+        }
+    }
+
+    /**
+     * nzd[topic]和nz[topic]改变之前调用
+     */
+    protected void beforeTopicUpdate(int topic) {
+    }
+
+    /**
+     * nzd[topic]和nz[topic]改变之后调用
+     */
+    protected void afterTopicUpdate(int topic) {
+    }
+
+    /**
+     * nwz[word][topic]改变之后调用，共享nwz时在该词的锁内调用
+     * @param count 改变后的计数
+     * @param delta 改变量，+1或-1
+     */
+    protected void wordCountChanged(int word, int topic, int count, int delta) {
+    }
+
+    /**
+     * nz被外部整体修改（如多线程合并nz）后调用，重新计算与nz相关的缓存，只在文档之间调用
+     */
+    public void refreshTopicCounts() {
+    }
+
+    /**
+     * 为一个采样线程创建采样器，与当前采样器共享nwz及按词维护的结构
+     * @param nz 线程私有的nz副本
+     * @param randomProvider 线程私有的随机数
+     */
+    public TopicSampler fork(int[] nz, Random randomProvider) {
+        TopicSampler worker = newWorker();
+        this.shared = true;
+        worker.shared = true;
+        worker.init(this.numTopics, this.alpha, this.beta, this.nwz, nz, randomProvider);
+        return worker;
+    }
+
+    /**
+     * 创建同类型的采样器，复制参数并引用当前采样器中按词维护的共享结构
+     */
+    protected abstract TopicSampler newWorker();
+
+    /**
+     * 为当前词抽取新主题，调用前该词已通过 removeToken 去除
+     * @param position 当前词在文档中的位置
+     * @param word 词id
+     * @param docLength 去除当前词后的文档长度
+     * @return 新主题
+     */
+    public abstract int sample(int position, int word, int docLength);
+
+    public double getLikelihood() {
+        return this.likelihood;
+    }
+
+    public long getTokens() {
+        return this.tokens;
+    }
+
+    public long getChangedTokens() {
+        return this.changedTokens;
+    }
+
+    /**
+     * 累加采样线程的词数统计
+     */
+    public void addTokenStats(TopicSampler worker) {
+        this.tokens += worker.tokens;
+        this.changedTokens += worker.changedTokens;
+    }
+}
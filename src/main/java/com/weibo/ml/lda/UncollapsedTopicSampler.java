@@ -0,0 +1,204 @@
+package com.weibo.ml.lda;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 非折叠采样（uncollapsed / ESCA 方式）：一次迭代内 phi = p(w|z) 固定不变
+ * phi[w][k] = (nwz[w][k] + beta) / (nz[k] + V * beta)，由reducer读入的上一轮 nwz.N 得到，采样过程中nwz和nz只读，
+ * 只有文档的nzd随采样改变。reducer照常记录delta_nwz（旧主题-1，新主题+1），它就是本轮的充分统计量，
+ * 仍由combineModelParam与上一轮的nwz相加得到新的nwz。
+ * phi不再单独保存一份V×K的矩阵，而是用只读的nwz和 1 / (nz[k] + V * beta) 现算，因此多线程时不需要加锁和同步nz
+ * p(z=k) 正比于 (nzd[k] + alpha) * phi[w][k]，拆成三部分：
+ * 1. 文档桶 nzd[k] * phi[w][k]，只涉及当前文档非零的主题
+ * 2. 词桶   alpha * nwz[w][k] / (nz[k] + V * beta)，只涉及当前词非零的主题，phi固定，累积概率在init中算好
+ * 3. 平滑桶 alpha * beta / (nz[k] + V * beta)，与文档和词都无关，累积概率在init中算好
+ * 后两部分用二分查找抽样，每个词的代价为 O(文档非零主题数 + log K)
+ * Created by yuanye8 on 16/10/18.
+ */
+public class UncollapsedTopicSampler extends TopicSampler {
+    //1 / (nz[k] + V * beta)
+    private double[] inv = null;
+    //平滑桶的累积概率
+    private double[] smoothingCumulative = null;
+    //词桶：词w的非零主题及累积概率位于 wordTopics/wordCumulative 的 [wordStart[w], wordStart[w + 1]) 区间
+    private int[] wordStart = null;
+    private int[] wordTopics = null;
+    private double[] wordCumulative = null;
+    //sum_k phi[w][k]，用于 LIKELIHOOD 计数
+    private double[] wordPhiSum = null;
+    //当前文档非零的主题
+    private int[] docTopics = null;
+    private int[] docIndex = null;
+    private int docSize = 0;
+    private double[] docProbs = null;
+
+    @Override
+    public void init(int numTopics, double alpha, double beta, WordTopicMatrix nwz, int[] nz, Random randomProvider) {
+        super.init(numTopics, alpha, beta, nwz, nz, randomProvider);
+        this.docTopics = new int[numTopics];
+        this.docIndex = new int[numTopics];
+        Arrays.fill(this.docIndex, -1);
+        this.docProbs = new double[numTopics];
+        //多线程时phi相关的结构由fork传入，不重复计算
+        if (this.inv == null) {
+            buildPhi();
+        }
+    }
+
+    private void buildPhi() {
+        this.inv = new double[this.numTopics];
+        this.smoothingCumulative = new double[this.numTopics];
+        double invSum = 0.0;
+        double total = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            this.inv[i] = 1.0 / (this.nz[i] + this.numWords * this.beta);
+            invSum += this.inv[i];
+            total += this.alpha * this.beta * this.inv[i];
+            this.smoothingCumulative[i] = total;
+        }
+
+        this.wordStart = new int[this.numWords + 1];
+        int[] counts = new int[this.numTopics];
+        for (int w = 0; w < this.numWords; w++) {
+            int size = 0;
+            this.nwz.getRow(w, counts);
+            for (int count : counts) {
+                if (count != 0) {
+                    size++;
+                }
+            }
+            this.wordStart[w + 1] = this.wordStart[w] + size;
+        }
+        this.wordTopics = new int[this.wordStart[this.numWords]];
+        this.wordCumulative = new double[this.wordStart[this.numWords]];
+        this.wordPhiSum = new double[this.numWords];
+        for (int w = 0; w < this.numWords; w++) {
+            this.nwz.getRow(w, counts);
+            int j = this.wordStart[w];
+            double cumulative = 0.0;
+            double phiSum = this.beta * invSum;
+            for (int i = 0; i < this.numTopics; i++) {
+                if (counts[i] != 0) {
+                    cumulative += this.alpha * counts[i] * this.inv[i];
+                    phiSum += counts[i] * this.inv[i];
+                    this.wordTopics[j] = i;
+                    this.wordCumulative[j] = cumulative;
+                    j++;
+                }
+            }
+            this.wordPhiSum[w] = phiSum;
+        }
+    }
+
+    @Override
+    protected TopicSampler newWorker() {
+        UncollapsedTopicSampler worker = new UncollapsedTopicSampler();
+        worker.inv = this.inv;
+        worker.smoothingCumulative = this.smoothingCumulative;
+        worker.wordStart = this.wordStart;
+        worker.wordTopics = this.wordTopics;
+        worker.wordCumulative = this.wordCumulative;
+        worker.wordPhiSum = this.wordPhiSum;
+        return worker;
+    }
+
+    @Override
+    public void startDocument(DocumentWritable doc, int[] nzd) {
+        super.startDocument(doc, nzd);
+        this.docSize = 0;
+        for (int i = 0; i < doc.getNumWords(); i++) {
+            int topic = doc.topics[i];
+            if (this.docIndex[topic] < 0) {
+                addDocTopic(topic);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasDocumentCache() {
+        return true;
+    }
+
+    @Override
+    public void endDocument() {
+        for (int i = 0; i < this.docSize; i++) {
+            this.docIndex[this.docTopics[i]] = -1;
+        }
+        this.docSize = 0;
+        super.endDocument();
+    }
+
+    /**
+     * phi在本轮迭代中固定，只修改nzd
+     */
+    @Override
+    protected void updateToken(int word, int topic, int delta) {
+        this.nzd[topic] += delta;
+        if (this.nzd[topic] == 0) {
+            removeDocTopic(topic);
+        } else if (this.docIndex[topic] < 0) {
+            addDocTopic(topic);
+        }
+    }
+
+    private void addDocTopic(int topic) {
+        this.docIndex[topic] = this.docSize;
+        this.docTopics[this.docSize++] = topic;
+    }
+
+    private void removeDocTopic(int topic) {
+        int i = this.docIndex[topic];
+        int last = this.docTopics[--this.docSize];
+        this.docTopics[i] = last;
+        this.docIndex[last] = i;
+        this.docIndex[topic] = -1;
+    }
+
+    @Override
+    public int sample(int position, int word, int docLength) {
+        double docMass = 0.0;
+        for (int i = 0; i < this.docSize; i++) {
+            int topic = this.docTopics[i];
+            this.docProbs[i] = this.nzd[topic] * (this.nwz.get(word, topic) + this.beta) * this.inv[topic];
+            docMass += this.docProbs[i];
+        }
+        int start = this.wordStart[word];
+        int end = this.wordStart[word + 1];
+        double wordMass = start < end ? this.wordCumulative[end - 1] : 0.0;
+        double smoothingMass = this.smoothingCumulative[this.numTopics - 1];
+        this.likelihood = this.wordPhiSum[word];
+
+        double sample = this.randomProvider.nextDouble() * (docMass + wordMass + smoothingMass);
+        if (sample < docMass) {
+            for (int i = 0; i < this.docSize; i++) {
+                sample -= this.docProbs[i];
+                if (sample < 0) {
+                    return this.docTopics[i];
+                }
+            }
+            return this.docTopics[this.docSize - 1];
+        }
+        sample -= docMass;
+        if (sample < wordMass) {
+            return this.wordTopics[searchCumulative(this.wordCumulative, start, end - 1, sample)];
+        }
+        sample -= wordMass;
+        return searchCumulative(this.smoothingCumulative, 0, this.numTopics - 1, sample);
+    }
+
+    /**
+     * 在 cumulative 的 [lo, hi] 区间二分查找第一个大于u的累积概率
+     */
+    private static int searchCumulative(double[] cumulative, int lo, int hi, double u) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > u) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,227 @@
+package com.weibo.ml.lda;
+
+import com.weibo.misc.Gamma;
+import com.weibo.tool.FolderReader;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * 变分推断的E-step（Mr.LDA方式），每篇文档独立计算，不需要保存每个词的主题
+ * 1. configure 读入上一轮的期望计数 lambda = beta + n(w, k)，计算 exp(E[log phi[k][w]]) = exp(psi(lambda[w][k]) - psi(sum_w lambda[w][k]))
+ * 2. 对每篇文档迭代更新 gamma[k] = alpha + sum_n q(z_n = k)，q(z_n = k) 正比于 exp(E[log theta[k]]) * exp(E[log phi[k][w_n]])，
+ *    直到gamma的平均变化小于 vb.gamma.tolerance 或达到 vb.gamma.iterations 次
+ * 3. 每个词的 sum_n q(z_n = k) 先在mapper内按词累加，缓存的词数超过 vb.buffer.words 时输出，再由combiner和reducer汇总
+ * Created by yuanye8 on 16/10/18.
+ */
+public class VariationalMapper implements Mapper<Text, DocumentWritable, IntWritable, WordWeightWritable> {
+    public static Logger LOG = Logger.getAnonymousLogger();
+    private int numTopics = 0;
+    private int numWords = 0;
+    private double alpha = 0.0;
+    private double beta = 0.0;
+    private int gammaIterations = 0;
+    private double gammaTolerance = 0.0;
+    private int bufferWords = 0;
+    //exp(E[log phi[k][w]])，按词存放
+    private double[][] expElogbeta = null;
+
+    private double[] gamma = null;
+    private double[] expElogtheta = null;
+    private double[] phiNorm = null;
+    //按词累加的 sum_n q(z_n = k)
+    private Map<Integer, double[]> buffer = new HashMap<Integer, double[]>();
+    private OutputCollector<IntWritable, WordWeightWritable> outputCollector = null;
+    private IntWritable outKey = new IntWritable();
+    private WordWeightWritable outValue = new WordWeightWritable();
+
+    public void configure(JobConf conf) {
+        this.numTopics = conf.getInt("num.topics", 0);
+        this.numWords = conf.getInt("num.words", 0);
+        this.alpha = (double) conf.getFloat("alpha", 0.0F);
+        this.beta = (double) conf.getFloat("beta", 0.0F);
+        this.gammaIterations = conf.getInt("vb.gamma.iterations", 100);
+        this.gammaTolerance = (double) conf.getFloat("vb.gamma.tolerance", 0.001F);
+        this.bufferWords = conf.getInt("vb.buffer.words", 10000);
+        this.gamma = new double[this.numTopics];
+        this.expElogtheta = new double[this.numTopics];
+        this.phiNorm = new double[1024];
+        try {
+            loadModel(conf.get("input.model"), conf.getBoolean("input.model.counts", false));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读取上一轮的期望计数，第一轮读取 InitModelTool 生成的 nwz.00000
+     * @param counts 为true时模型为WordInfoWritable格式的整数计数，否则为WordWeightWritable格式
+     */
+    private void loadModel(String modelFile, boolean counts) throws IOException {
+        long startTime = System.currentTimeMillis();
+        this.expElogbeta = new double[this.numWords][];
+        FolderReader fr = new FolderReader(new Path(modelFile));
+        IntWritable key = new IntWritable();
+        if (counts) {
+            WordInfoWritable value = new WordInfoWritable(this.numTopics);
+            while (fr.next(key, value)) {
+                double[] lambda = new double[this.numTopics];
+                for (int i = 0; i < this.numTopics; i++) {
+                    lambda[i] = value.getTopicCount(i);
+                }
+                this.expElogbeta[key.get()] = lambda;
+            }
+        } else {
+            WordWeightWritable value = new WordWeightWritable(this.numTopics);
+            while (fr.next(key, value)) {
+                this.expElogbeta[key.get()] = value.getWeights().clone();
+            }
+        }
+        fr.close();
+
+        //M-step：lambda = beta + 期望计数
+        double[] lambdaSum = new double[this.numTopics];
+        for (int w = 0; w < this.numWords; w++) {
+            if (this.expElogbeta[w] == null) {
+                this.expElogbeta[w] = new double[this.numTopics];
+            }
+            double[] lambda = this.expElogbeta[w];
+            for (int i = 0; i < this.numTopics; i++) {
+                lambda[i] += this.beta;
+                lambdaSum[i] += lambda[i];
+            }
+        }
+        for (int i = 0; i < this.numTopics; i++) {
+            lambdaSum[i] = Gamma.digamma(lambdaSum[i]);
+        }
+        for (int w = 0; w < this.numWords; w++) {
+            double[] lambda = this.expElogbeta[w];
+            for (int i = 0; i < this.numTopics; i++) {
+                lambda[i] = Math.exp(Gamma.digamma(lambda[i]) - lambdaSum[i]);
+            }
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        LOG.info("Load model parameters using " + duration + " milliseconds.");
+    }
+
+    public void map(Text key, DocumentWritable doc, OutputCollector<IntWritable, WordWeightWritable> outputCollector, Reporter reporter) throws IOException {
+        this.outputCollector = outputCollector;
+        int length = doc.getNumWords();
+        if (length == 0) {
+            return;
+        }
+        if (this.phiNorm.length < length) {
+            this.phiNorm = new double[length * 2];
+        }
+        double likelihood = inferDocument(doc);
+        reporter.incrCounter(
+                VariationalTool.VariationalCounter.LIKELIHOOD,
+                (long) (likelihood * VariationalTool.RESOLUTION));
+
+        //sum_n q(z_n = k) = exp(E[log theta[k]]) * exp(E[log phi[k][w_n]]) / phiNorm[n]
+        for (int n = 0; n < length; n++) {
+            int word = doc.words[n];
+            double[] stats = this.buffer.get(word);
+            if (stats == null) {
+                stats = new double[this.numTopics];
+                this.buffer.put(word, stats);
+            }
+            double[] expElogbetaW = this.expElogbeta[word];
+            double scale = 1.0 / this.phiNorm[n];
+            for (int i = 0; i < this.numTopics; i++) {
+                stats[i] += this.expElogtheta[i] * expElogbetaW[i] * scale;
+            }
+        }
+        if (this.buffer.size() >= this.bufferWords) {
+            flush();
+        }
+    }
+
+    /**
+     * 迭代更新gamma，结束时expElogtheta和phiNorm对应最后的gamma
+     * @return sum_n log sum_k exp(E[log theta[k]] + E[log phi[k][w_n]])，ELBO中与词相关的部分
+     */
+    private double inferDocument(DocumentWritable doc) {
+        int length = doc.getNumWords();
+        double[] newGamma = new double[this.numTopics];
+        for (int i = 0; i < this.numTopics; i++) {
+            this.gamma[i] = this.alpha + (double) length / this.numTopics;
+        }
+        for (int iter = 0; iter < this.gammaIterations; iter++) {
+            computeExpElogtheta();
+            computePhiNorm(doc);
+            for (int i = 0; i < this.numTopics; i++) {
+                newGamma[i] = 0.0;
+            }
+            for (int n = 0; n < length; n++) {
+                double[] expElogbetaW = this.expElogbeta[doc.words[n]];
+                double scale = 1.0 / this.phiNorm[n];
+                for (int i = 0; i < this.numTopics; i++) {
+                    newGamma[i] += expElogbetaW[i] * scale;
+                }
+            }
+            double change = 0.0;
+            for (int i = 0; i < this.numTopics; i++) {
+                double g = this.alpha + this.expElogtheta[i] * newGamma[i];
+                change += Math.abs(g - this.gamma[i]);
+                this.gamma[i] = g;
+            }
+            if (change / this.numTopics < this.gammaTolerance) {
+                break;
+            }
+        }
+        computeExpElogtheta();
+        computePhiNorm(doc);
+        double likelihood = 0.0;
+        for (int n = 0; n < length; n++) {
+            likelihood += Math.log(this.phiNorm[n]);
+        }
+        return likelihood;
+    }
+
+    private void computeExpElogtheta() {
+        double sum = 0.0;
+        for (int i = 0; i < this.numTopics; i++) {
+            sum += this.gamma[i];
+        }
+        double psiSum = Gamma.digamma(sum);
+        for (int i = 0; i < this.numTopics; i++) {
+            this.expElogtheta[i] = Math.exp(Gamma.digamma(this.gamma[i]) - psiSum);
+        }
+    }
+
+    private void computePhiNorm(DocumentWritable doc) {
+        for (int n = 0; n < doc.getNumWords(); n++) {
+            double[] expElogbetaW = this.expElogbeta[doc.words[n]];
+            double norm = 1e-100;
+            for (int i = 0; i < this.numTopics; i++) {
+                norm += this.expElogtheta[i] * expElogbetaW[i];
+            }
+            this.phiNorm[n] = norm;
+        }
+    }
+
+    private void flush() throws IOException {
+        for (Map.Entry<Integer, double[]> e : this.buffer.entrySet()) {
+            this.outKey.set(e.getKey());
+            this.outValue.set(e.getValue());
+            this.outputCollector.collect(this.outKey, this.outValue);
+        }
+        this.buffer.clear();
+    }
+
+    public void close() throws IOException {
+        if (this.outputCollector != null) {
+            flush();
+        }
+    }
+}
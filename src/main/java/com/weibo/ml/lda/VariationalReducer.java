@@ -0,0 +1,41 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * 汇总各mapper输出的期望计数，同时作为combiner使用
+ * Created by yuanye8 on 16/10/18.
+ */
+public class VariationalReducer implements Reducer<IntWritable, WordWeightWritable, IntWritable, WordWeightWritable> {
+    private double[] weights = null;
+    private WordWeightWritable outvalue = new WordWeightWritable();
+
+    public void configure(JobConf jobConf) {
+    }
+
+    public void reduce(IntWritable key, Iterator<WordWeightWritable> values, OutputCollector<IntWritable, WordWeightWritable> outputCollector, Reporter reporter) throws IOException {
+        while (values.hasNext()) {
+            WordWeightWritable v = values.next();
+            if (this.weights == null) {
+                this.weights = new double[v.size()];
+                this.outvalue.set(this.weights);
+            }
+            for (int i = 0; i < v.size(); i++) {
+                this.weights[i] += v.getWeight(i);
+            }
+        }
+        outputCollector.collect(key, this.outvalue);
+        Arrays.fill(this.weights, 0.0);
+    }
+
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,262 @@
+package com.weibo.ml.lda;
+
+import com.weibo.mapred.MapReduceJobConf;
+import com.weibo.misc.Flags;
+import com.weibo.tool.FolderReader;
+import com.weibo.tool.FolderWriter;
+import com.weibo.tool.GenericTool;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.logging.Logger;
+
+/**
+ * 变分推断训练入口，与LdaTrainer使用相同的 working_dir 结构
+ * 1. 初始化与LdaTrainer相同：生成 words、parameters、docs.00000 和 nwz.00000，随机初始化的nwz作为第一轮的期望计数
+ * 2. 每轮一个MapReduce任务：VariationalMapper做E-step，VariationalReducer作为combiner和reducer汇总期望计数，
+ *    输出 lambda.N；M-step lambda = beta + 期望计数 在下一轮读入时完成。文档只读，不输出每个词的主题
+ * 3. ELBO中与词相关的部分相对变化小于 vb_tolerance 时提前结束
+ * 4. 最后一轮的期望计数取整后写为 nwz.N，由ExportModelTool导出为与吉布斯采样相同的文本模型
+ * Created by yuanye8 on 16/10/18.
+ */
+public class VariationalTool implements GenericTool {
+    public enum VariationalCounter {LIKELIHOOD};
+    //每篇文档的对数似然乘以RESOLUTION后取整计数
+    public static double RESOLUTION = 1000.0;
+    Logger LOG = Logger.getAnonymousLogger();
+
+    private int gammaIterations = 100;
+    private double gammaTolerance = 0.001;
+    private int bufferWords = 10000;
+
+    public void setEStepOptions(int gammaIterations, double gammaTolerance, int bufferWords) {
+        this.gammaIterations = gammaIterations;
+        this.gammaTolerance = gammaTolerance;
+        this.bufferWords = bufferWords;
+    }
+
+    public void run(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        InitModelTool initializer = new InitModelTool();
+
+        Flags flags = new Flags();
+        //必须参数
+        flags.add("input", "input documents, each is space-separated words.");
+        flags.add("output", "the final model, a plain text file.");
+        flags.add("working_dir", "temporary directory to hold intermediate files.");
+        flags.add("num_topics", "number of topics");
+        flags.add("num_iterations", "max number of variational EM iterations.");
+
+        //非必须参数
+        flags.addWithDefaultValue("alpha", "-1", "symmetric hyper-parameter alpha. [default 50.0/k]");
+        flags.addWithDefaultValue("beta", "0.01", "symmetric hyper-parameter beta. [default 0.01]");
+        flags.addWithDefaultValue("max_num_words", "100000", "max number of words to use, sorted by TF*IDF. [default 100000]");
+        flags.addWithDefaultValue("min_df", "5", "words appear in less than min_df documents will be ignored. [default 5]");
+        flags.addWithDefaultValue("input_format", "text", "'sequecefile': Text value of each entry is the doc. 'text': each line is a doc. [default 'text']");
+        flags.addWithDefaultValue("map_num", "48", "overall number of map container");
+        flags.addWithDefaultValue("reduce_num", "40", "overall number of reduce container");
+        flags.addWithDefaultValue("gamma_iterations", "100", "max E-step iterations per document. [default 100]");
+        flags.addWithDefaultValue("gamma_tolerance", "0.001", "stop the E-step when mean change of gamma is below this. [default 0.001]");
+        flags.addWithDefaultValue("buffer_words", "10000", "words whose expected counts each mapper buffers before emitting. [default 10000]");
+        flags.addWithDefaultValue("vb_tolerance", "0.0001", "stop when relative change of the likelihood bound is below this, 0 runs all iterations. [default 0.0001]");
+        flags.parseAndCheck(args);
+
+        Path input = new Path(flags.getString("input"));
+        Path output = new Path(flags.getString("output"));
+        Path workingDir = new Path(flags.getString("working_dir"));
+        int numTopics = flags.getInt("num_topics");
+        int numIterations = flags.getInt("num_iterations");
+        double alpha = flags.getDouble("alpha");
+        if (alpha == -1.0) {
+            alpha = 50.0 / numTopics;
+        }
+        double beta = flags.getDouble("beta");
+        int map = flags.getInt("map_num");
+        int reduce = flags.getInt("reduce_num");
+        double tolerance = flags.getDouble("vb_tolerance");
+        setEStepOptions(flags.getInt("gamma_iterations"), flags.getDouble("gamma_tolerance"), flags.getInt("buffer_words"));
+
+        JobConf conf = new JobConf();
+        FileSystem fs = FileSystem.get(conf);
+        if (!fs.exists(workingDir)) {
+            fs.mkdirs(workingDir);
+        }
+
+        Path parameters = new Path(workingDir, "parameters");
+        if (!fs.exists(parameters)) {
+            DataOutputStream out = fs.create(parameters, true);
+            out.writeDouble(alpha);
+            out.writeDouble(beta);
+            out.writeInt(numTopics);
+            out.close();
+        }
+
+        NumberFormat formatter = new DecimalFormat("00000");
+        Path docs0 = new Path(workingDir, "docs.00000");
+        Path nwz0 = new Path(workingDir, "nwz.00000");
+        Path tfdf = new Path(workingDir, "tfdf");
+        Path words = new Path(workingDir, "words");
+        int numWords = 0;
+
+        //检查是否已有迭代结果，最新一次可能不完整，删除后从之前一次开始
+        int latest = -1;
+        Path[] paths = { workingDir };
+        FileStatus[] existLambda = fs.listStatus(paths, new PathFilter() {
+            public boolean accept(Path p) {
+                return p.getName().startsWith("lambda.");
+            }
+        });
+        for (FileStatus p : existLambda) {
+            int n = Integer.parseInt(p.getPath().getName().substring(7));
+            if (n > latest) {
+                latest = n;
+            }
+        }
+        if (latest > 0) {
+            fs.delete(new Path(workingDir, "lambda." + formatter.format(latest)));
+            latest--;
+            if (latest > 0 && !fs.exists(new Path(workingDir, "lambda." + formatter.format(latest)))) {
+                latest = 0;
+            }
+            logAndShow("Found previous training data, start with iteration #" + latest + ".");
+        }
+
+        if (!fs.exists(docs0)) {
+            if (flags.getString("input_format").equals("text")) {
+                Path seqFileInput = new Path(workingDir, "input");
+                PlainTextToSeqFileTool tool = new PlainTextToSeqFileTool();
+                tool.convertToSequenceFile(input, seqFileInput);
+                input = seqFileInput;
+                logAndShow("Text input converted to SequenceFile.");
+            }
+            initializer.makeWordList(input, tfdf, map, reduce);
+            numWords = initializer.selectWords(tfdf, words, flags.getInt("max_num_words"), flags.getInt("min_df"));
+            initializer.initModel(input, docs0, nwz0, words, numTopics, numWords, map, reduce);
+            logAndShow("Doc initialized.");
+        } else {
+            numWords = loadNumWords(words);
+        }
+        if (latest < 0) {
+            latest = 0;
+        }
+
+        double previous = 0.0;
+        int i = latest;
+        while (i < numIterations) {
+            logAndShow("Begin variational iteration #" + (i + 1));
+            Path inputModel = i == 0 ? nwz0 : new Path(workingDir, "lambda." + formatter.format(i));
+            Path outputModel = new Path(workingDir, "lambda." + formatter.format(i + 1));
+            double likelihood = iterate(docs0, inputModel, i == 0, outputModel,
+                    alpha, beta, numTopics, numWords, map, reduce);
+            logAndShow("#" + (i + 1) + " Likelihood bound: " + likelihood);
+            OutputStreamWriter likelihoodWriter = new OutputStreamWriter(
+                    fs.create(new Path(workingDir, "likelihood"), true),
+                    "UTF-8");
+            likelihoodWriter.append(Double.toString(likelihood));
+            likelihoodWriter.append("\n");
+            likelihoodWriter.close();
+            //只保留最近两轮，最新一轮不完整时可以从前一轮重新开始
+            if (i > 1) {
+                fs.delete(new Path(workingDir, "lambda." + formatter.format(i - 1)));
+            }
+            i++;
+            if (i > latest + 1 && tolerance > 0 && Math.abs((likelihood - previous) / previous) < tolerance) {
+                logAndShow("Converged after iteration #" + i + ".");
+                break;
+            }
+            previous = likelihood;
+        }
+
+        if (i > 0) {
+            Path finalNwz = new Path(workingDir, "nwz." + formatter.format(i));
+            writeCounts(new Path(workingDir, "lambda." + formatter.format(i)), finalNwz, numTopics);
+        }
+        logAndShow("Training done.");
+
+        ExportModelTool exportModelTool = new ExportModelTool();
+        exportModelTool.exportModel(workingDir, output, 1);
+        logAndShow("Model exported.");
+
+        DecimalFormat decimalFormat = new DecimalFormat("0.0");
+        String duration_hour = decimalFormat.format((System.currentTimeMillis() - startTime) / 3600.0 / 1000.0);
+        logAndShow("Training time consuming: " + duration_hour + " hours.");
+    }
+
+    /**
+     * 一轮变分EM
+     * @param counts inputModel 是否为WordInfoWritable格式的整数计数
+     * @return 所有文档 sum_n log sum_k exp(E[log theta[k]] + E[log phi[k][w_n]])
+     */
+    public double iterate(Path inputDocs, Path inputModel, boolean counts, Path outputModel,
+                          double alpha, double beta, int numTopics, int numWords,
+                          int map, int reduce) throws IOException {
+        FileSystem fs = FileSystem.get(new JobConf());
+        MapReduceJobConf job = new MapReduceJobConf(getClass(), map, reduce);
+        job.setJobName("VariationalInferenceForLDA");
+        job.setInputOutputPath(inputDocs, outputModel);
+        job.set("input.model", inputModel.makeQualified(fs).toString());
+        job.setBoolean("input.model.counts", counts);
+        job.set("alpha", Double.toString(alpha));
+        job.set("beta", Double.toString(beta));
+        job.setInt("num.topics", numTopics);
+        job.setInt("num.words", numWords);
+        job.setInt("vb.gamma.iterations", this.gammaIterations);
+        job.set("vb.gamma.tolerance", Double.toString(this.gammaTolerance));
+        job.setInt("vb.buffer.words", this.bufferWords);
+        job.setMapReduce(VariationalMapper.class, VariationalReducer.class);
+        job.setCombinerClass(VariationalReducer.class);
+        job.setKeyValueClass(IntWritable.class, WordWeightWritable.class, IntWritable.class, WordWeightWritable.class);
+
+        RunningJob runningJob = JobClient.runJob(job);
+        runningJob.waitForCompletion();
+        return runningJob.getCounters().getCounter(VariationalCounter.LIKELIHOOD) / RESOLUTION;
+    }
+
+    /**
+     * 期望计数四舍五入后按nwz格式写出
+     */
+    private void writeCounts(Path lambda, Path nwz, int numTopics) throws IOException {
+        FolderReader reader = new FolderReader(lambda);
+        FolderWriter writer = new FolderWriter(nwz, IntWritable.class, WordInfoWritable.class);
+        IntWritable key = new IntWritable();
+        WordWeightWritable weights = new WordWeightWritable(numTopics);
+        WordInfoWritable value = new WordInfoWritable(numTopics);
+        while (reader.next(key, weights)) {
+            for (int i = 0; i < numTopics; i++) {
+                value.setTopicCount(i, (int) Math.round(weights.getWeight(i)));
+            }
+            writer.append(key, value);
+        }
+        writer.close();
+        reader.close();
+    }
+
+    private int loadNumWords(Path words) throws IOException {
+        FolderReader reader = new FolderReader(words);
+        int numWords = 0;
+        Text key = new Text();
+        IntWritable value = new IntWritable();
+        while (reader.next(key, value)) {
+            numWords++;
+        }
+        reader.close();
+        return numWords;
+    }
+
+    private void logAndShow(String s) {
+        System.out.println(s);
+        this.LOG.info(s);
+    }
+}
@@ -1,20 +1,44 @@
 package com.weibo.ml.lda;
 
+import com.weibo.misc.VarInt;
 import org.apache.hadoop.io.Writable;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 /**
  * nwz数组辅助写出类
+ * 两种序列化格式，读取时自动识别：
+ * 1. 稠密：[int K][K个int计数][boolean isPartial]
+ * 2. 稀疏：[int ~K（负数）][varint 非零个数][(varint 主题号差, zigzag varint 计数) ...][boolean isPartial]，
+ *    delta_nwz 大部分为0，用于减少 combine 的 shuffle 数据量
+ * readFields 不立即展开为K个计数：稠密格式保留读入的字节，稀疏格式只保留非零项，
+ * 需要时才展开；addTo 直接从读入的数据累加，combine 时不必每行都展开、复制
  * Created by yuanye on 2016/9/6.
  */
 public class WordInfoWritable implements Writable {
+    //topicCount 已是最新的计数
+    private static final int DECODED = 0;
+    //计数为buffer中的稠密格式字节
+    private static final int RAW_DENSE = 1;
+    //计数为 sparseTopics/sparseCounts 中的非零项
+    private static final int RAW_SPARSE = 2;
+
     private int[] topicCount;
+    private int state = DECODED;
+    private int[] sparseTopics = null;
+    private int[] sparseCounts = null;
+    private int numSparse = 0;
     //写出缓冲区
     protected byte[] buffer;
     protected  boolean isPartial;
+    //写出时是否使用稀疏格式
+    private boolean sparse = false;
+    private byte[] sparseBuffer = null;
 
     public WordInfoWritable(int n) {
         this.topicCount = new int[n];
@@ -32,13 +56,77 @@ public class WordInfoWritable implements Writable {
     }
 
     public int getTopicCount(int i) {
+        decode();
         return this.topicCount[i];
     }
 
     public void setTopicCount(int i, int v) {
+        decode();
         this.topicCount[i] = v;
     }
 
+    /**
+     * @return 内部的计数数组，与WordTopicMatrix按行复制时使用
+     */
+    public int[] getTopicCounts() {
+        decode();
+        return this.topicCount;
+    }
+
+    /**
+     * 把本行的计数累加到counts，稠密格式直接从读入的字节批量累加，稀疏格式只累加非零项
+     */
+    public void addTo(int[] counts) {
+        if (this.state == RAW_SPARSE) {
+            for (int i = 0; i < this.numSparse; i++) {
+                counts[this.sparseTopics[i]] += this.sparseCounts[i];
+            }
+        } else if (this.state == RAW_DENSE) {
+            IntBuffer ints = ByteBuffer.wrap(this.buffer).asIntBuffer();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += this.topicCount[i];
+            }
+        }
+    }
+
+    /**
+     * 把计数不为0的主题按主题号升序复制到topics和counts中，稀疏格式不展开
+     * @return 非零主题的个数
+     */
+    public int getNonZeros(int[] topics, int[] counts) {
+        if (this.state == RAW_SPARSE) {
+            System.arraycopy(this.sparseTopics, 0, topics, 0, this.numSparse);
+            System.arraycopy(this.sparseCounts, 0, counts, 0, this.numSparse);
+            return this.numSparse;
+        }
+        decode();
+        int n = 0;
+        for (int i = 0; i < this.topicCount.length; i++) {
+            if (this.topicCount[i] != 0) {
+                topics[n] = i;
+                counts[n] = this.topicCount[i];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void decode() {
+        if (this.state == RAW_DENSE) {
+            ByteBuffer.wrap(this.buffer).asIntBuffer().get(this.topicCount);
+        } else if (this.state == RAW_SPARSE) {
+            Arrays.fill(this.topicCount, 0);
+            for (int i = 0; i < this.numSparse; i++) {
+                this.topicCount[this.sparseTopics[i]] = this.sparseCounts[i];
+            }
+        }
+        this.state = DECODED;
+    }
+
     public int size() {
         return this.topicCount.length;
     }
@@ -47,30 +135,103 @@ public class WordInfoWritable implements Writable {
         return this.isPartial;
     }
 
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @return 不为0的计数个数
+     */
+    public int numNonZeros() {
+        if (this.state == RAW_SPARSE) {
+            return this.numSparse;
+        }
+        decode();
+        int n = 0;
+        for (int i = 0; i < size(); i++) {
+            if (this.topicCount[i] != 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     public void write(DataOutput dataOutput) throws IOException {
+        if (this.sparse) {
+            writeSparse(dataOutput);
+            return;
+        }
         dataOutput.writeInt(this.topicCount.length);
-        for (int i = 0; i < size(); i++) {
-            DocumentWritable.intToFourBytes(this.buffer, i * 4, this.topicCount[i]);
+        //整行按大端序批量编码，与 DocumentWritable.intToFourBytes 的格式相同；读入后未修改的稠密行直接写出原字节
+        if (this.state != RAW_DENSE) {
+            decode();
+            ByteBuffer.wrap(this.buffer).asIntBuffer().put(this.topicCount);
         }
         dataOutput.write(this.buffer);
         dataOutput.writeBoolean(this.isPartial);
     }
 
+    private void writeSparse(DataOutput dataOutput) throws IOException {
+        int n = numNonZeros();
+        int maxBytes = VarInt.MAX_BYTES * (1 + 2 * n);
+        if (this.sparseBuffer == null || this.sparseBuffer.length < maxBytes) {
+            this.sparseBuffer = new byte[maxBytes];
+        }
+        int pos = VarInt.write(this.sparseBuffer, 0, n);
+        int previous = 0;
+        if (this.state == RAW_SPARSE) {
+            for (int i = 0; i < n; i++) {
+                pos = VarInt.write(this.sparseBuffer, pos, this.sparseTopics[i] - previous);
+                pos = VarInt.write(this.sparseBuffer, pos, VarInt.zigzag(this.sparseCounts[i]));
+                previous = this.sparseTopics[i];
+            }
+        } else {
+            for (int i = 0; i < size(); i++) {
+                if (this.topicCount[i] != 0) {
+                    pos = VarInt.write(this.sparseBuffer, pos, i - previous);
+                    pos = VarInt.write(this.sparseBuffer, pos, VarInt.zigzag(this.topicCount[i]));
+                    previous = i;
+                }
+            }
+        }
+        dataOutput.writeInt(~size());
+        dataOutput.write(this.sparseBuffer, 0, pos);
+        dataOutput.writeBoolean(this.isPartial);
+    }
+
     public void readFields(DataInput dataInput) throws IOException {
         int size = dataInput.readInt();
+        boolean sparseInput = size < 0;
+        if (sparseInput) {
+            size = ~size;
+        }
         if (this.topicCount == null || (size != size())) {
             this.topicCount = new int[size];
             this.buffer = new byte[size * 4];
         }
-        dataInput.readFully(this.buffer);
-
-        for (int i = 0; i < size(); i++) {
-            this.topicCount[i] = DocumentWritable.fourBytesToInt(this.buffer, i * 4);
+        if (sparseInput) {
+            int n = VarInt.read(dataInput);
+            if (this.sparseTopics == null || this.sparseTopics.length < n) {
+                this.sparseTopics = new int[Math.max(n, 16)];
+                this.sparseCounts = new int[Math.max(n, 16)];
+            }
+            int topic = 0;
+            for (int i = 0; i < n; i++) {
+                topic += VarInt.read(dataInput);
+                this.sparseTopics[i] = topic;
+                this.sparseCounts[i] = VarInt.unzigzag(VarInt.read(dataInput));
+            }
+            this.numSparse = n;
+            this.state = RAW_SPARSE;
+        } else {
+            dataInput.readFully(this.buffer);
+            this.state = RAW_DENSE;
         }
         this.isPartial = dataInput.readBoolean();
     }
 
     public String toString() {
+        decode();
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < size(); i++) {
             sb.append(i);
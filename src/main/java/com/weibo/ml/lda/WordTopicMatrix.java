@@ -0,0 +1,100 @@
+package com.weibo.ml.lda;
+
+/**
+ * V×K 的词-主题计数矩阵（nwz、delta_nwz）
+ * 1. heap/offheap：FlatWordTopicMatrix，按行连续存放在堆内数组或堆外内存中
+ * 2. hybrid：HybridWordTopicMatrix，低频词按稀疏的(topic, count)存放，高频词按稠密数组存放，适合K很大的模型
+ * 3. MappedWordTopicMatrix：只读映射同一节点上各任务共享的模型文件，自身的修改记在私有的增量中
+ * 4. 多线程共享时按词对 LOCK_STRIPES 个锁取模加锁，修改某个词的计数前持有 lock(word)；
+ *    不加锁的读取可能读到旧的计数，但不会出错
+ * Created by yuanye8 on 16/10/18.
+ */
+public abstract class WordTopicMatrix {
+    public static final String DEFAULT_STORAGE = "heap";
+    private static final int LOCK_STRIPES = 1024;
+
+    protected final int numWords;
+    protected final int numTopics;
+    private final Object[] locks;
+
+    protected WordTopicMatrix(int numWords, int numTopics) {
+        this.numWords = numWords;
+        this.numTopics = numTopics;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param storage heap、offheap 或 hybrid
+     */
+    public static WordTopicMatrix create(int numWords, int numTopics, String storage) {
+        if (storage == null || storage.equals("heap")) {
+            return new FlatWordTopicMatrix(numWords, numTopics, false);
+        } else if (storage.equals("offheap")) {
+            return new FlatWordTopicMatrix(numWords, numTopics, true);
+        } else if (storage.equals("hybrid")) {
+            return new HybridWordTopicMatrix(numWords, numTopics);
+        }
+        throw new RuntimeException("Unknown model storage: " + storage);
+    }
+
+    public int getNumWords() {
+        return this.numWords;
+    }
+
+    public int getNumTopics() {
+        return this.numTopics;
+    }
+
+    public abstract int get(int word, int topic);
+
+    public abstract void set(int word, int topic, int value);
+
+    /**
+     * @return 改变后的计数
+     */
+    public abstract int add(int word, int topic, int delta);
+
+    /**
+     * 把一行复制到row中，内循环需要遍历全部K个主题时先复制再访问
+     */
+    public abstract void getRow(int word, int[] row);
+
+    /**
+     * 把一行累加到row中
+     */
+    public abstract void addToRow(int word, int[] row);
+
+    public abstract void setRow(int word, int[] row);
+
+    /**
+     * 把一行中计数不为0的主题按主题号升序复制到topics和counts中
+     * @return 非零主题的个数
+     */
+    public abstract int getNonZeros(int word, int[] topics, int[] counts);
+
+    public abstract void clear();
+
+    /**
+     * 把other的计数累加到当前矩阵，两者形状相同
+     */
+    public void addAll(WordTopicMatrix other) {
+        int[] topics = new int[this.numTopics];
+        int[] counts = new int[this.numTopics];
+        for (int w = 0; w < this.numWords; w++) {
+            int n = other.getNonZeros(w, topics, counts);
+            for (int i = 0; i < n; i++) {
+                add(w, topics[i], counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return 修改某个词的计数时需要持有的锁
+     */
+    public Object lock(int word) {
+        return this.locks[word & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,71 @@
+package com.weibo.ml.lda;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 一个词在K个主题下的期望计数（变分推断的充分统计量），与WordInfoWritable对应，但计数为实数
+ * Created by yuanye8 on 16/10/18.
+ */
+public class WordWeightWritable implements Writable {
+    private double[] weights;
+
+    public WordWeightWritable(int n) {
+        this.weights = new double[n];
+    }
+
+    public WordWeightWritable() {
+        this.weights = null;
+    }
+
+    public double getWeight(int i) {
+        return this.weights[i];
+    }
+
+    public void setWeight(int i, double v) {
+        this.weights[i] = v;
+    }
+
+    public double[] getWeights() {
+        return this.weights;
+    }
+
+    public void set(double[] weights) {
+        this.weights = weights;
+    }
+
+    public int size() {
+        return this.weights.length;
+    }
+
+    public void write(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(this.weights.length);
+        for (int i = 0; i < this.weights.length; i++) {
+            dataOutput.writeDouble(this.weights[i]);
+        }
+    }
+
+    public void readFields(DataInput dataInput) throws IOException {
+        int size = dataInput.readInt();
+        if (this.weights == null || size != size()) {
+            this.weights = new double[size];
+        }
+        for (int i = 0; i < size; i++) {
+            this.weights[i] = dataInput.readDouble();
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size(); i++) {
+            sb.append(i);
+            sb.append(":");
+            sb.append(this.weights[i]);
+            sb.append(" ");
+        }
+        return sb.toString();
+    }
+}
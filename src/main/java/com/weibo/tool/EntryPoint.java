@@ -3,6 +3,8 @@ package com.weibo.tool;
 import com.weibo.ml.lda.InferenceNewDoc;
 import com.weibo.ml.lda.LdaTrainer;
 import com.weibo.ml.lda.ShowTopics;
+import com.weibo.ml.lda.StochasticTrainer;
+import com.weibo.ml.lda.VariationalTool;
 
 /**
  * Created by yuanye8 on 16/9/2.
@@ -10,7 +12,7 @@ import com.weibo.ml.lda.ShowTopics;
 public class EntryPoint {
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.out.println("usage: train showModel inference");
+            System.out.println("usage: train trainVB trainStream showModel inference");
             return;
         }
 
@@ -23,6 +25,10 @@ public class EntryPoint {
         GenericTool tool = null;
         if (command.equals("train")) {
             tool = new LdaTrainer();
+        } else if (command.equals("trainVB")) {
+            tool = new VariationalTool();
+        } else if (command.equals("trainStream")) {
+            tool = new StochasticTrainer();
         } else if (command.equals("showModel")) {
             tool = new ShowTopics();
         } else if (command.equals("inference")) {
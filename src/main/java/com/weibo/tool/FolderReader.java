@@ -45,13 +45,20 @@ public class FolderReader {
 
         this.currentPart = -1;
         this.currentReader = null;
+        this.parts = listParts(path, fs);
+        nextPart();
+    }
+
+    /**
+     * 列出文件夹下的数据文件，忽略以 . 和 _ 开头的文件（如 _SUCCESS、.crc）
+     */
+    public static FileStatus[] listParts(Path path, FileSystem fs) throws IOException {
         Path[] paths = { path };
-        this.parts = fs.listStatus(paths, new PathFilter() {
+        return fs.listStatus(paths, new PathFilter() {
             public boolean accept(Path path) {
                 return (!path.getName().startsWith(".")) && (!path.getName().startsWith("_"));
             }
         });
-        nextPart();
     }
 
     public Class getKeyClass() {